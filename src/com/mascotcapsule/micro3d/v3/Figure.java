@@ -18,8 +18,10 @@ package com.mascotcapsule.micro3d.v3;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.Stack;
 
 public class Figure {
+	final Stack stack = new Stack();
 	Model data;
 	Texture[] textures;
 	int selectedTex = -1;
@@ -58,7 +60,9 @@ public class Figure {
 	private synchronized void init(byte[] bytes) throws IOException {
 		data = Loader.loadMbacData(bytes);
 		Utils.transform(data.originalVertices, data.vertices,
-				data.originalNormals, data.normals, data.bones, null);
+				data.originalNormals, data.normals, data.bones, null,
+				data.originalBounds, data.bounds);
+		data.updateFaceNormals();
 		//fillTexCoordBuffer();
 	}
 
@@ -80,7 +84,6 @@ public class Figure {
 			for (int i = dynamic.length / 2 - 1; i >= 0; i--) {
 				if (dynamic[i * 2] <= iFrame) {
 					currentPattern = dynamic[i * 2 + 1];
-					applyPattern();
 					break;
 				}
 			}
@@ -89,48 +92,6 @@ public class Figure {
 		applyBoneAction(act, frame < 0 ? 0 : frame);
 	}
 
-	private void applyPattern() {
-		int[] indexArray = data.indices;
-		int pos = 0;
-		int invalid = data.numVertices / 3 - 1;
-		
-		for (int i=0; i<data.polygonsT.length; i++) {
-			Model.Polygon p = data.polygonsT[i];
-			int[] indices = p.indices;
-			int length = indices.length;
-			int pp = p.pattern;
-			
-			if ((pp & currentPattern) == pp) {
-				for (int t = 0; t < length; t++) {
-					indexArray[pos++] = indices[t];
-				}
-			} else {
-				while (length > 0) {
-					indexArray[pos++] = invalid;
-					length--;
-				}
-			}
-		}
-
-		for (int i=0; i<data.polygonsC.length; i++) {
-			Model.Polygon p = data.polygonsC[i];
-			int[] indices = p.indices;
-			int length = indices.length;
-			int pp = p.pattern;
-			
-			if ((pp & currentPattern) == pp) {
-				for (int t = 0; t < length; t++) {
-					indexArray[pos++] = indices[t];
-				}
-			} else {
-				while (length > 0) {
-					indexArray[pos++] = invalid;
-					length--;
-				}
-			}
-		}
-	}
-
 	public final Texture getTexture() {
 		if (selectedTex < 0) {
 			return null;
@@ -180,7 +141,6 @@ public class Figure {
 
 	public synchronized final void setPattern(int idx) {
 		currentPattern = idx;
-		applyPattern();
 	}
 
 	private void applyBoneAction(Action act, int frame) {
@@ -193,7 +153,9 @@ public class Figure {
 			}
 			//todo
 			Utils.transform(data.originalVertices, data.vertices,
-					data.originalNormals, data.normals, data.bones, act.matrices);
+					data.originalNormals, data.normals, data.bones, act.matrices,
+					data.originalBounds, data.bounds);
+			data.updateFaceNormals();
 		}
 	}
 	/*private void fillTexCoordBuffer() {
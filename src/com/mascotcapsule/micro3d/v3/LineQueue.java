@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Projected lines and points of a flush. Opaque ones are drawn after the opaque
+ * triangles, blended ones after the blended triangles.
+ */
+final class LineQueue {
+	// x0, y0 (16.16), z0, x1, y1, z1, color, blend mode
+	private static final int LINE_SIZE = 8;
+
+	private int[] lines = new int[LINE_SIZE * 64];
+	private int size;
+	private final Material material = new Material();
+
+	/**
+	 * @param blendMode one of Model.Polygon.BLEND_* or 0
+	 */
+	void add(int x0, int y0, int z0, int x1, int y1, int z1, int color, int blendMode) {
+		int o = size * LINE_SIZE;
+		if (o == lines.length) {
+			int[] tmp = new int[o * 2];
+			System.arraycopy(lines, 0, tmp, 0, o);
+			lines = tmp;
+		}
+		int[] l = lines;
+		l[o] = x0;
+		l[o + 1] = y0;
+		l[o + 2] = z0;
+		l[o + 3] = x1;
+		l[o + 4] = y1;
+		l[o + 5] = z1;
+		l[o + 6] = color;
+		l[o + 7] = blendMode;
+		size++;
+	}
+
+	/**
+	 * @param blended draw the blended lines instead of the opaque ones
+	 */
+	void render(Rasterizer rasterizer, boolean blended) {
+		Material m = material;
+		m.shading = false;
+		m.toon = false;
+		m.sphere = null;
+		int[] l = lines;
+		boolean first = true;
+		for (int o = 0, end = size * LINE_SIZE; o < end; o += LINE_SIZE) {
+			int color = l[o + 6];
+			int blendMode = l[o + 7];
+			if (blendMode != 0 != blended) continue;
+			if (first || color != m.color || blendMode != m.blendMode) {
+				m.set(null, color, blendMode, false, blendMode == 0);
+				rasterizer.setMaterial(m);
+				first = false;
+			}
+			rasterizer.drawLine(l[o], l[o + 1], l[o + 2], l[o + 3], l[o + 4], l[o + 5]);
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+}
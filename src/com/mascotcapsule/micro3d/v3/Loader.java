@@ -137,6 +137,7 @@ class Loader {
 			}
 			
 			data.originalNormals = normals;
+			data.normals = new byte[normals.length];
 		}
 		loader.clearCache();
 
@@ -204,6 +205,7 @@ class Loader {
 		if (count != numVertices) {
 			throw new RuntimeException("Bones vertices = " + count + ", but all vertices = " + numVertices);
 		}
+		data.initBounds();
 
 		int available = loader.available();
 		if (version >= 4) {
@@ -396,10 +398,8 @@ class Loader {
 					R, G, B, light, specular,
 					R, G, B, light, specular,
 					R, G, B, light, specular,
-					R, G, B, light, specular,
-					R, G, B, light, specular,
 			};
-			final Model.Polygon polygon = new Model.Polygon(material, materialData, new int[] {a, b, c, c, b, d});
+			final Model.Polygon polygon = new Model.Polygon(material, materialData, new int[] {a, b, c, d});
 			polygonsC[i] = polygon;
 		}
 	}
@@ -454,11 +454,9 @@ class Loader {
 					uA, vA, 1, 0, transparent,
 					uB, vB, 1, 0, transparent,
 					uC, vC, 1, 0, transparent,
-					uC, vC, 1, 0, transparent,
-					uB, vB, 1, 0, transparent,
 					uD, vD, 1, 0, transparent,
 			};
-			polygons[i] = new Model.Polygon(mat, texCoords, new int[] {a, b, c, c, b, d});
+			polygons[i] = new Model.Polygon(mat, texCoords, new int[] {a, b, c, d});
 		}
 	}
 
@@ -517,11 +515,9 @@ class Loader {
 					uA, vA, light, specular, transparent,
 					uB, vB, light, specular, transparent,
 					uC, vC, light, specular, transparent,
-					uC, vC, light, specular, transparent,
-					uB, vB, light, specular, transparent,
 					uD, vD, light, specular, transparent,
 			};
-			polygons[i] = new Model.Polygon(material, texCoords, new int[] {a, b, c, c, b, d});
+			polygons[i] = new Model.Polygon(material, texCoords, new int[] {a, b, c, d});
 		}
 	}
 
@@ -584,11 +580,9 @@ class Loader {
 					uA, vA, light, specular, transparent,
 					uB, vB, light, specular, transparent,
 					uC, vC, light, specular, transparent,
-					uC, vC, light, specular, transparent,
-					uB, vB, light, specular, transparent,
 					uD, vD, light, specular, transparent,
 			};
-			polygons[i] = new Model.Polygon(material, texCoords, new int[] {a, b, c, c, b, d});
+			polygons[i] = new Model.Polygon(material, texCoords, new int[] {a, b, c, d});
 		}
 	}
 
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Raster state of a group of triangles.
+ */
+final class Material {
+	Texture texture;
+	int color;
+	int blendMode;
+	boolean colorKey;
+	boolean depthWrite;
+	boolean shading;
+	boolean toon;
+	int toonThreshold;
+	int toonHigh;
+	int toonLow;
+	Texture sphere;
+	// palettes of the texture and the sphere map as pixels of the color buffer
+	int[] palette;
+	int[] spherePalette;
+	// shaded palettes of the texture
+	int[] litPalette;
+	int[] toonPalette;
+	// transparent and opaque texel runs of a color keyed texture
+	byte[] keyRuns;
+	// clip rectangle the triangles were submitted with
+	int clipLeft;
+	int clipTop;
+	int clipRight;
+	int clipBottom;
+
+	/**
+	 * @param texture   texture, or null to fill with {@code color}
+	 * @param color     RGB color of untextured polygons
+	 * @param blendMode one of Model.Polygon.BLEND_* or 0
+	 * @param colorKey  palette index 0 is transparent
+	 */
+	void set(Texture texture, int color, int blendMode, boolean colorKey, boolean depthWrite) {
+		this.texture = texture;
+		this.color = color;
+		this.blendMode = blendMode;
+		this.colorKey = colorKey;
+		this.depthWrite = depthWrite;
+		palette = texture != null ? texture.getPixelPalette() : null;
+		litPalette = null;
+		toonPalette = null;
+		keyRuns = colorKey && texture != null ? texture.getKeyRuns() : null;
+	}
+
+	/**
+	 * @param shading apply the interpolated light level
+	 * @param effect  toon shading parameters source
+	 * @param sphere  sphere map added on top of the lit color, or null
+	 *                <p>
+	 *                Must follow {@link #set(Texture, int, int, boolean, boolean)}.
+	 */
+	void setShading(boolean shading, Effect3D effect, Texture sphere) {
+		this.shading = shading;
+		toon = shading && (effect.mShading == Effect3D.TOON_SHADING || effect.isToonShading);
+		toonThreshold = effect.mToonThreshold;
+		toonHigh = effect.mToonHigh;
+		toonLow = effect.mToonLow;
+		this.sphere = sphere;
+		spherePalette = sphere != null ? sphere.getPixelPalette() : null;
+		litPalette = null;
+		toonPalette = null;
+		if (shading && texture != null) {
+			if (toon) {
+				toonPalette = texture.getToonPalette(toonLow, toonHigh);
+			} else {
+				litPalette = texture.getLitPalette();
+			}
+		}
+	}
+
+	void setClip(int left, int top, int right, int bottom) {
+		clipLeft = left;
+		clipTop = top;
+		clipRight = right;
+		clipBottom = bottom;
+	}
+
+	void set(Material m) {
+		texture = m.texture;
+		color = m.color;
+		blendMode = m.blendMode;
+		colorKey = m.colorKey;
+		depthWrite = m.depthWrite;
+		shading = m.shading;
+		toon = m.toon;
+		toonThreshold = m.toonThreshold;
+		toonHigh = m.toonHigh;
+		toonLow = m.toonLow;
+		sphere = m.sphere;
+		palette = m.palette;
+		spherePalette = m.spherePalette;
+		litPalette = m.litPalette;
+		toonPalette = m.toonPalette;
+		keyRuns = m.keyRuns;
+		clipLeft = m.clipLeft;
+		clipTop = m.clipTop;
+		clipRight = m.clipRight;
+		clipBottom = m.clipBottom;
+	}
+}
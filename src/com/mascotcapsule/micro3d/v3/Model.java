@@ -18,7 +18,6 @@ package com.mascotcapsule.micro3d.v3;
 
 class Model {
 
-	final int numVertices;
 	final int numPatterns;
 	final int numTextures;
 	final boolean hasPolyC;
@@ -36,19 +35,27 @@ class Model {
 	
 	final Polygon[] polygonsC;
 	final Polygon[] polygonsT;
-	int numVerticesPolyT;
-	final int[] indices;
 	final int[] bones;
+	// normal of every single sided triangle of the posed vertices, polygonsT first
+	final int[] faceNormals;
+	/*
+	 * Bounding spheres {x, y, z, radius} of the vertices of every bone followed by one
+	 * enclosing the figure, a negative radius marks an empty sphere.
+	 * Original bounds are in bone space, the others follow the pose.
+	 */
+	final int[] originalBounds;
+	final int[] bounds;
+	// bone of every vertex
+	final short[] vertexBones;
 
 	Model(int vertices, int numBones, int patterns, int numTextures,
 		  int polyT3, int polyT4, int polyC3, int polyC4) {
 		numPatterns = patterns;
 		this.numTextures = numTextures;
 		
-		numVerticesPolyT = polyT3 * 3 + polyT4 * 6;
-		numVertices = (polyT3 + polyC3) * 3 + (polyT4 + polyC4) * 6;
-		
-		indices = new int[numVertices];
+		// quads are split into two triangles
+		int triangles = polyT3 + polyC3 + (polyT4 + polyC4) * 2;
+		faceNormals = new int[triangles * 3];
 		
 		polygonsC = new Polygon[polyC3 + polyC4];
 		polygonsT = new Polygon[polyT3 + polyT4];
@@ -61,6 +68,108 @@ class Model {
 		originalVertices = new short[vertices * 3];
 		this.vertices = new short[vertices * 3];
 		bones = new int[numBones * (12 + 2) * 2];
+		originalBounds = new int[(numBones + 1) * 4];
+		bounds = new int[(numBones + 1) * 4];
+		vertexBones = new short[vertices];
+	}
+
+	/**
+	 * Computes {@link #originalBounds} once the vertices and bones are read.
+	 */
+	void initBounds() {
+		short[] v = originalVertices;
+		int[] b = originalBounds;
+		int numBones = b.length / 4 - 1;
+		int count = v.length / 3;
+		int first = 0;
+		for (int bone = 0; bone < numBones; bone++) {
+			int end = Math.min(first + bones[bone * 14], count);
+			int o = bone * 4;
+			if (first == end) {
+				b[o + 3] = -1;
+				continue;
+			}
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+			for (int i = first; i < end; i++) {
+				int x = v[i * 3];
+				int y = v[i * 3 + 1];
+				int z = v[i * 3 + 2];
+				if (x < minX) minX = x;
+				if (x > maxX) maxX = x;
+				if (y < minY) minY = y;
+				if (y > maxY) maxY = y;
+				if (z < minZ) minZ = z;
+				if (z > maxZ) maxZ = z;
+				vertexBones[i] = (short) bone;
+			}
+			int cx = (minX + maxX) >> 1;
+			int cy = (minY + maxY) >> 1;
+			int cz = (minZ + maxZ) >> 1;
+			long max = 0;
+			for (int i = first; i < end; i++) {
+				long dx = v[i * 3] - cx;
+				long dy = v[i * 3 + 1] - cy;
+				long dz = v[i * 3 + 2] - cz;
+				long d = dx * dx + dy * dy + dz * dz;
+				if (d > max) max = d;
+			}
+			b[o] = cx;
+			b[o + 1] = cy;
+			b[o + 2] = cz;
+			b[o + 3] = (int) Math.sqrt(max) + 1;
+			first = end;
+		}
+		b[numBones * 4 + 3] = -1;
+		System.arraycopy(b, 0, bounds, 0, b.length);
+	}
+
+	/**
+	 * Recomputes {@link #faceNormals} after the vertices were posed.
+	 * Normals are scaled to fit 15 bits, only their direction is used.
+	 */
+	void updateFaceNormals() {
+		updateFaceNormals(polygonsC, updateFaceNormals(polygonsT, 0));
+	}
+
+	private int updateFaceNormals(Polygon[] polygons, int face) {
+		short[] v = vertices;
+		int[] normals = faceNormals;
+		for (int i = 0; i < polygons.length; i++) {
+			Polygon p = polygons[i];
+			int[] indices = p.indices;
+			p.firstFace = face;
+			int triangles = indices.length - 2;
+			if (p.doubleFace != 0) {
+				face += triangles;
+				continue;
+			}
+			for (int t = 0; t < triangles; t++, face++) {
+				// t = 0 is {a, b, c}, t = 1 of a quad is {c, b, d}, like in Render.drawPolygon
+				int a = indices[t << 1] * 3;
+				int b = indices[1] * 3;
+				int c = indices[t + 2] * 3;
+				long ux = v[b] - v[a];
+				long uy = v[b + 1] - v[a + 1];
+				long uz = v[b + 2] - v[a + 2];
+				long wx = v[c] - v[a];
+				long wy = v[c + 1] - v[a + 1];
+				long wz = v[c + 2] - v[a + 2];
+				long nx = uy * wz - uz * wy;
+				long ny = uz * wx - ux * wz;
+				long nz = ux * wy - uy * wx;
+				long max = Math.max(Math.abs(nx), Math.max(Math.abs(ny), Math.abs(nz)));
+				int shift = 0;
+				while (max >> shift > 0x7FFF) {
+					shift++;
+				}
+				int o = face * 3;
+				normals[o] = (int) (nx >> shift);
+				normals[o + 1] = (int) (ny >> shift);
+				normals[o + 2] = (int) (nz >> shift);
+			}
+		}
+		return face;
 	}
 
 	static final class Polygon {
@@ -73,15 +182,18 @@ class Model {
 		static final int LIGHTING = 32;
 		static final int SPECULAR = 64;
 		
+		// {a, b, c} or a quad {a, b, c, d} drawn as triangles {a, b, c} and {c, b, d}
 		final int[] indices;
 		final int blendMode;
 		final int doubleFace;
 		byte[] texCoords;
+		//per vertex of indices:
 		//r, g, b, light 0/1, specular 0/1
 		//or
 		//u, v, light 0/1, specular 0/1, trasparent 0/1
 		int face = -1; //texture number?
 		int pattern; //idk...
+		int firstFace; // index of the first triangle in faceNormals
 
 		Polygon(int material, byte[] texCoords, int[] indices) {
 			this.indices = indices;
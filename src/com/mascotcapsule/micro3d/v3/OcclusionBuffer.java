@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Farthest depth of every 8x8 block of the depth buffer, for rejecting whole figures.
+ * Blocks touched by drawing are only marked and recomputed when tested again.
+ */
+final class OcclusionBuffer {
+	private static final int TILE_SHIFT = 3;
+	private static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	private short[] depthBuffer;
+	private int stride;
+	private int left;
+	private int top;
+	private int right;
+	private int bottom;
+	private int tilesX;
+	private int tilesY;
+	private short[] farthest = new short[0];
+	private boolean[] dirty = new boolean[0];
+
+	void setTarget(short[] depthBuffer, int stride, int left, int top, int right, int bottom) {
+		this.depthBuffer = depthBuffer;
+		this.stride = stride;
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+		tilesX = (right + TILE_SIZE - 1) >> TILE_SHIFT;
+		tilesY = (bottom + TILE_SIZE - 1) >> TILE_SHIFT;
+		int count = tilesX * tilesY;
+		if (farthest.length < count) {
+			farthest = new short[count];
+			dirty = new boolean[count];
+		}
+		clear();
+	}
+
+	/**
+	 * Resets all blocks to the far plane, the depth buffer must be cleared too.
+	 */
+	void clear() {
+		short[] farthest = this.farthest;
+		boolean[] dirty = this.dirty;
+		for (int i = 0, count = tilesX * tilesY; i < count; i++) {
+			farthest[i] = Rasterizer.DEPTH_FAR;
+			dirty[i] = false;
+		}
+	}
+
+	/**
+	 * Marks the blocks of a screen rectangle that may have been drawn to.
+	 */
+	void invalidate(int l, int t, int r, int b) {
+		if (l < left) l = left;
+		if (t < top) t = top;
+		if (r > right) r = right;
+		if (b > bottom) b = bottom;
+		if (l >= r || t >= b) return;
+		int tx1 = (r - 1) >> TILE_SHIFT;
+		int ty1 = (b - 1) >> TILE_SHIFT;
+		for (int ty = t >> TILE_SHIFT; ty <= ty1; ty++) {
+			for (int tx = l >> TILE_SHIFT, i = ty * tilesX + tx; tx <= tx1; tx++, i++) {
+				dirty[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Tests screen bounds of an object against the drawn depth.
+	 *
+	 * @param z nearest depth of the object
+	 * @return true if every pixel in the bounds already has a depth not farther than {@code z}
+	 */
+	boolean isHidden(int l, int t, int r, int b, int z) {
+		if (l < left) l = left;
+		if (t < top) t = top;
+		if (r > right) r = right;
+		if (b > bottom) b = bottom;
+		if (l >= r || t >= b) return true;
+		int tx1 = (r - 1) >> TILE_SHIFT;
+		int ty1 = (b - 1) >> TILE_SHIFT;
+		for (int ty = t >> TILE_SHIFT; ty <= ty1; ty++) {
+			for (int tx = l >> TILE_SHIFT, i = ty * tilesX + tx; tx <= tx1; tx++, i++) {
+				if (dirty[i]) {
+					update(i, tx, ty);
+				}
+				if (z < farthest[i]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void update(int i, int tx, int ty) {
+		int x0 = Math.max(tx << TILE_SHIFT, left);
+		int y0 = Math.max(ty << TILE_SHIFT, top);
+		int x1 = Math.min((tx + 1) << TILE_SHIFT, right);
+		int y1 = Math.min((ty + 1) << TILE_SHIFT, bottom);
+		short[] depth = depthBuffer;
+		int max = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int p = y * stride + x0, end = y * stride + x1; p < end; p++) {
+				if (depth[p] > max) {
+					max = depth[p];
+				}
+			}
+		}
+		farthest[i] = (short) max;
+		dirty[i] = false;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Sorts queued triangles into depth buckets and draws them back to front
+ * without a depth buffer, like the original runtime does.
+ * <p>
+ * Triangles are keyed by the sum of their view space vertex depths, quantized
+ * over the range of the flush. Screen depth is hyperbolic and would crowd
+ * distant triangles into a few buckets.
+ */
+final class OrderingTable {
+	private static final int BUCKETS = 4096;
+
+	private final int[] heads = new int[BUCKETS];
+	private int[] next = new int[64];
+	private int[] keys = new int[64];
+
+	void render(TriangleQueue queue, Rasterizer rasterizer) {
+		int size = queue.size;
+		if (size == 0) return;
+		int[] heads = this.heads;
+		for (int i = 0; i < BUCKETS; i++) {
+			heads[i] = -1;
+		}
+		if (next.length < size) {
+			next = new int[queue.materialIndex.length];
+			keys = new int[next.length];
+		}
+		int[] next = this.next;
+		int[] keys = this.keys;
+		int[] v = queue.vertices;
+
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int t = 0; t < size; t++) {
+			int o = t * TriangleQueue.TRIANGLE_SIZE;
+			int z = viewDepth(v, o)
+					+ viewDepth(v, o + Rasterizer.VERTEX_SIZE)
+					+ viewDepth(v, o + Rasterizer.VERTEX_SIZE * 2);
+			keys[t] = z;
+			if (z < min) min = z;
+			if (z > max) max = z;
+		}
+		long range = (long) max - min + 1;
+
+		// inserted from the last one, so each bucket lists its triangles in submission order
+		for (int t = size - 1; t >= 0; t--) {
+			int bucket = (int) ((keys[t] - (long) min) * BUCKETS / range);
+			next[t] = heads[bucket];
+			heads[bucket] = t;
+		}
+
+		int[] materialIndex = queue.materialIndex;
+		Material[] materials = queue.materials;
+		Material current = null;
+		for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+			for (int t = heads[bucket]; t >= 0; t = next[t]) {
+				Material m = materials[materialIndex[t]];
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+					rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+				}
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				rasterizer.fillTriangle(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+			}
+		}
+	}
+
+	/**
+	 * @return view space depth of the vertex at {@code o}, from Q in perspective
+	 * or undoing the linear depth of parallel projection
+	 */
+	private static int viewDepth(int[] v, int o) {
+		int q = v[o + Rasterizer.Q];
+		return q > 0 ? (1 << 30) / q : (v[o + Rasterizer.Z] << 2) - 65536;
+	}
+}
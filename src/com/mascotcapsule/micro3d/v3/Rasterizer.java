@@ -0,0 +1,1540 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Software triangle rasterizer.
+ * <p>
+ * Triangles are walked edge by edge in 16.16 fixed point, attributes are interpolated
+ * with gradients derived from the triangle plane and written span by span into
+ * an ARGB or RGB565 color buffer and a 16-bit depth buffer.
+ */
+final class Rasterizer {
+	// vertex layout
+	static final int X = 0;  // screen x, 16.16
+	static final int Y = 1;  // screen y, 16.16
+	static final int Z = 2;  // depth, 0 - DEPTH_FAR
+	static final int U = 3;  // texel u
+	static final int V = 4;  // texel v
+	static final int S = 5;  // light level, 0 - 255
+	static final int SU = 6; // sphere map u, texels
+	static final int SV = 7; // sphere map v, texels
+	static final int Q = 8;  // (1 << 30) / view depth, 0 if not perspective
+	static final int VERTEX_SIZE = 9;
+
+	static final int DEPTH_FAR = 0x7FFF;
+
+	/**
+	 * Pixels between perspective correct texture coordinates, affine in between.
+	 * 0 maps textures affinely.
+	 */
+	private static final int SUBDIVISION = Utils.getInt("micro3d.v3.render.subdivision", 16);
+
+	/**
+	 * Triangles with at most this many pixel centers in their bounding box are filled
+	 * pixel by pixel without gradient setup.
+	 */
+	private static final int SMALL_TRIANGLE = 4;
+
+	/**
+	 * Color buffers hold RGB565 pixels instead of ARGB. Palettes and colors are converted
+	 * to the pixel format before they reach the kernels.
+	 */
+	static final boolean RGB565 = Utils.getBoolean("micro3d.v3.render.rgb565");
+	/** RGB565 pixel of opaque black, 0 marks pixels nothing was drawn to. */
+	private static final int BLACK_565 = 0x0020;
+
+	// one of them is set, depending on RGB565
+	int[] colorBuffer;
+	short[] colorBuffer565;
+	short[] depthBuffer;
+	int stride;
+	int clipLeft;
+	int clipTop;
+	int clipRight;
+	int clipBottom;
+	private int targetOffset;
+	// receives the spans of fillTriangle instead of the target buffers when set
+	SpanBuffer spanSink;
+	// when set, fillTriangle writes triangleId and depth only
+	int[] idBuffer;
+	int triangleId;
+
+	// material
+	private byte[] texIndex;
+	private int[] texPalette;
+	private int[] litPalette;
+	private int[] toonPalette;
+	private byte[] keyRuns;
+	private int texShift;
+	private int texUMask;
+	private int texVMask;
+	private byte[] sphereIndex;
+	private int[] spherePalette;
+	private int sphereShift;
+	private int sphereUMask;
+	private int sphereVMask;
+	private int color;
+	private int blendMode;
+	private boolean colorKey;
+	private boolean depthWrite;
+	private boolean shading;
+	private boolean toon;
+	private int toonThreshold;
+	private int toonHigh;
+	private int toonLow;
+
+	// span kernels, chosen once per material
+	private static final int K_FLAT = 0;
+	private static final int K_FLAT_LIT = 1;
+	private static final int K_FLAT_TOON = 2;
+	private static final int K_TEX = 3;
+	private static final int K_TEX_LIT = 4;
+	private static final int K_TEX_TOON = 5;
+	private static final int K_TEX_KEY = 6;
+	private static final int K_TEX_KEY_LIT = 7;
+	private static final int K_TEX_KEY_TOON = 8;
+	private int kernel;
+	// kernel output goes straight to the color buffer
+	private boolean direct;
+	// depth is written by the depth test pass
+	private boolean depthPassWrite;
+	// depth is written with the color of visible texels
+	private boolean keyedDepth;
+	// one opaque color written straight to the color buffer
+	private boolean flat;
+	private int[] rowBuffer = new int[0];
+	// outline and edges of the quad being filled
+	private final int[] quadOutline = new int[4];
+	private final int[] edgeX = new int[4];
+	private final int[] edgeY = new int[4];
+	private final int[] edgeSlope = new int[4];
+	private final int[] edgeTop = new int[4];
+	private final int[] edgeBottom = new int[4];
+
+	// triangle plane, values at the reference vertex and gradients per pixel, 16.16
+	private int refX;
+	private int refY;
+	private long baseZ;
+	private long baseU;
+	private long baseV;
+	private long baseS;
+	private long baseSU;
+	private long baseSV;
+	private int dzdx;
+	private int dudx;
+	private int dvdx;
+	private int dsdx;
+	private int dsudx;
+	private int dsvdx;
+	private int dzdy;
+	private int dudy;
+	private int dvdy;
+	private int dsdy;
+	private int dsudy;
+	private int dsvdy;
+
+	// perspective texture mapping, u * w and v * w are interpolated with w in 0.32
+	private boolean perspective;
+	private long baseW;
+	private long baseUW;
+	private long baseVW;
+	private long dwdx;
+	private long duwdx;
+	private long dvwdx;
+	private long dwdy;
+	private long duwdy;
+	private long dvwdy;
+
+	// span state
+	private int spanZ;
+	private int spanU;
+	private int spanV;
+	private int spanS;
+	private int spanSU;
+	private int spanSV;
+	private long spanW;
+	private long spanUW;
+	private long spanVW;
+	// result of perspectiveAt, 16.16
+	private int pixelU;
+	private int pixelV;
+
+	/**
+	 * @param depthBuffer depth buffer, or null to draw without depth test
+	 * @param originX     screen x of the first buffer column
+	 * @param originY     screen y of the first buffer row
+	 */
+	void setTarget(int[] colorBuffer, short[] depthBuffer, int stride, int originX, int originY) {
+		this.colorBuffer = colorBuffer;
+		colorBuffer565 = null;
+		this.depthBuffer = depthBuffer;
+		this.stride = stride;
+		targetOffset = -(originY * stride + originX);
+		updateKernel();
+	}
+
+	/**
+	 * Same as {@link #setTarget(int[], short[], int, int, int)} for an RGB565 color buffer.
+	 */
+	void setTarget(short[] colorBuffer, short[] depthBuffer, int stride, int originX, int originY) {
+		this.colorBuffer = null;
+		colorBuffer565 = colorBuffer;
+		this.depthBuffer = depthBuffer;
+		this.stride = stride;
+		targetOffset = -(originY * stride + originX);
+		updateKernel();
+	}
+
+	/**
+	 * @param depthBuffer depth buffer of the current target, or null to draw without depth test
+	 */
+	void setDepthBuffer(short[] depthBuffer) {
+		this.depthBuffer = depthBuffer;
+		updateKernel();
+	}
+
+	void setClip(int left, int top, int right, int bottom) {
+		clipLeft = left;
+		clipTop = top;
+		clipRight = right;
+		clipBottom = bottom;
+	}
+
+	void setMaterial(Material m) {
+		Texture texture = m.texture;
+		if (texture == null) {
+			texIndex = null;
+			texPalette = null;
+		} else {
+			texIndex = texture.index;
+			texPalette = m.palette;
+			texShift = texture.shift;
+			texUMask = texture.uMask;
+			texVMask = texture.vMask;
+		}
+		color = m.color;
+		blendMode = m.blendMode;
+		colorKey = m.colorKey;
+		depthWrite = m.depthWrite;
+		shading = m.shading;
+		toon = m.toon;
+		toonThreshold = m.toonThreshold;
+		toonHigh = m.toonHigh;
+		toonLow = m.toonLow;
+		litPalette = m.litPalette;
+		toonPalette = m.toonPalette;
+		keyRuns = m.keyRuns;
+		Texture sphere = m.sphere;
+		if (sphere == null) {
+			sphereIndex = null;
+			spherePalette = null;
+		} else {
+			sphereIndex = sphere.index;
+			spherePalette = m.spherePalette;
+			sphereShift = sphere.shift;
+			sphereUMask = sphere.uMask;
+			sphereVMask = sphere.vMask;
+		}
+		updateKernel();
+	}
+
+	/**
+	 * Computes the attribute gradients of a triangle.
+	 *
+	 * @return doubled signed area, 0 if the triangle is degenerate
+	 */
+	private long setup(int[] v, int a, int b, int c) {
+		int x0 = v[a + X];
+		int y0 = v[a + Y];
+		long dx1 = v[b + X] - x0;
+		long dy1 = v[b + Y] - y0;
+		long dx2 = v[c + X] - x0;
+		long dy2 = v[c + Y] - y0;
+		long area = dx1 * dy2 - dx2 * dy1;
+		long div = area >> 16;
+		if (div == 0) return 0;
+
+		refX = x0;
+		refY = y0;
+		baseZ = (long) v[a + Z] << 16;
+		long d1 = (long) (v[b + Z] - v[a + Z]) << 16;
+		long d2 = (long) (v[c + Z] - v[a + Z]) << 16;
+		dzdx = gradient(d1 * dy2 - d2 * dy1, div);
+		dzdy = gradient(d2 * dx1 - d1 * dx2, div);
+		if (texIndex != null) {
+			baseU = (long) v[a + U] << 16;
+			d1 = (long) (v[b + U] - v[a + U]) << 16;
+			d2 = (long) (v[c + U] - v[a + U]) << 16;
+			dudx = gradient(d1 * dy2 - d2 * dy1, div);
+			dudy = gradient(d2 * dx1 - d1 * dx2, div);
+			baseV = (long) v[a + V] << 16;
+			d1 = (long) (v[b + V] - v[a + V]) << 16;
+			d2 = (long) (v[c + V] - v[a + V]) << 16;
+			dvdx = gradient(d1 * dy2 - d2 * dy1, div);
+			dvdy = gradient(d2 * dx1 - d1 * dx2, div);
+			perspective = SUBDIVISION > 0 && setupPerspective(v, a, b, c, dx1, dy1, dx2, dy2, div);
+		} else {
+			perspective = false;
+		}
+		if (shading) {
+			baseS = (long) v[a + S] << 16;
+			d1 = (long) (v[b + S] - v[a + S]) << 16;
+			d2 = (long) (v[c + S] - v[a + S]) << 16;
+			dsdx = gradient(d1 * dy2 - d2 * dy1, div);
+			dsdy = gradient(d2 * dx1 - d1 * dx2, div);
+		}
+		if (sphereIndex != null) {
+			baseSU = (long) v[a + SU] << 16;
+			d1 = (long) (v[b + SU] - v[a + SU]) << 16;
+			d2 = (long) (v[c + SU] - v[a + SU]) << 16;
+			dsudx = gradient(d1 * dy2 - d2 * dy1, div);
+			dsudy = gradient(d2 * dx1 - d1 * dx2, div);
+			baseSV = (long) v[a + SV] << 16;
+			d1 = (long) (v[b + SV] - v[a + SV]) << 16;
+			d2 = (long) (v[c + SV] - v[a + SV]) << 16;
+			dsvdx = gradient(d1 * dy2 - d2 * dy1, div);
+			dsvdy = gradient(d2 * dx1 - d1 * dx2, div);
+		}
+		return area;
+	}
+
+	/**
+	 * Computes the gradients of w = 1 / depth and the texture coordinates divided by depth.
+	 * w is normalized so the nearest vertex has 1.0, only its ratios between vertices matter.
+	 *
+	 * @return false if the texture can be mapped affinely
+	 */
+	private boolean setupPerspective(int[] v, int a, int b, int c,
+									 long dx1, long dy1, long dx2, long dy2, long div) {
+		int qa = v[a + Q];
+		int qb = v[b + Q];
+		int qc = v[c + Q];
+		if (qa <= 0 || qb <= 0 || qc <= 0 || qa == qb && qb == qc) return false;
+		int max = Math.max(qa, Math.max(qb, qc));
+		long wa = ((long) qa << 16) / max;
+		long wb = ((long) qb << 16) / max;
+		long wc = ((long) qc << 16) / max;
+		baseW = wa << 16;
+		long d1 = wb - wa << 16;
+		long d2 = wc - wa << 16;
+		dwdx = (d1 * dy2 - d2 * dy1) / div;
+		dwdy = (d2 * dx1 - d1 * dx2) / div;
+		// u * 16 * w in 16.16
+		long ua = (long) v[a + U] * wa << 4;
+		baseUW = ua;
+		d1 = ((long) v[b + U] * wb << 4) - ua;
+		d2 = ((long) v[c + U] * wc << 4) - ua;
+		duwdx = (d1 * dy2 - d2 * dy1) / div;
+		duwdy = (d2 * dx1 - d1 * dx2) / div;
+		long va = (long) v[a + V] * wa << 4;
+		baseVW = va;
+		d1 = ((long) v[b + V] * wb << 4) - va;
+		d2 = ((long) v[c + V] * wc << 4) - va;
+		dvwdx = (d1 * dy2 - d2 * dy1) / div;
+		dvwdy = (d2 * dx1 - d1 * dx2) / div;
+		return true;
+	}
+
+	/**
+	 * Perspective correct texture coordinates of pixel {@code k} of the current span,
+	 * stored in pixelU and pixelV.
+	 */
+	private void perspectiveAt(int k) {
+		long w = spanW + dwdx * k;
+		if (w < 1) w = 1;
+		pixelU = (int) ((spanUW + duwdx * k << 28) / w);
+		pixelV = (int) ((spanVW + dvwdx * k << 28) / w);
+	}
+
+	/**
+	 * Evaluates the triangle plane at the center of pixel (x, y).
+	 */
+	private void beginSpan(int x, int y) {
+		long ox = ((long) x << 16) + 0x8000 - refX;
+		long oy = ((long) y << 16) + 0x8000 - refY;
+		spanZ = (int) (baseZ + (dzdx * ox >> 16) + (dzdy * oy >> 16));
+		if (flat) return;
+		spanU = (int) (baseU + (dudx * ox >> 16) + (dudy * oy >> 16));
+		spanV = (int) (baseV + (dvdx * ox >> 16) + (dvdy * oy >> 16));
+		spanS = (int) (baseS + (dsdx * ox >> 16) + (dsdy * oy >> 16));
+		spanSU = (int) (baseSU + (dsudx * ox >> 16) + (dsudy * oy >> 16));
+		spanSV = (int) (baseSV + (dsvdx * ox >> 16) + (dsvdy * oy >> 16));
+		if (perspective) {
+			spanW = baseW + (dwdx * ox >> 16) + (dwdy * oy >> 16);
+			spanUW = baseUW + (duwdx * ox >> 16) + (duwdy * oy >> 16);
+			spanVW = baseVW + (dvwdx * ox >> 16) + (dvwdy * oy >> 16);
+		}
+	}
+
+	/**
+	 * Prepares the triangle plane for {@link #fillRow}.
+	 */
+	boolean prepare(int[] v, int a, int b, int c) {
+		return setup(v, a, b, c) != 0;
+	}
+
+	/**
+	 * Fills {@code count} pixels of row {@code y} starting at {@code x}, without clipping.
+	 */
+	void fillRow(int x, int y, int count) {
+		beginSpan(x, y);
+		fillSpan(y * stride + x + targetOffset, count);
+	}
+
+	/**
+	 * Scanline rasterization, walks the triangle edges row by row.
+	 */
+	void fillTriangle(int[] v, int a, int b, int c) {
+		// sort vertices from top to bottom
+		if (v[a + Y] > v[b + Y]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		if (v[b + Y] > v[c + Y]) {
+			int t = b;
+			b = c;
+			c = t;
+		}
+		if (v[a + Y] > v[b + Y]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		int x0 = v[a + X];
+		int y0 = v[a + Y];
+		int x1 = v[b + X];
+		int y1 = v[b + Y];
+		int x2 = v[c + X];
+		int y2 = v[c + Y];
+
+		// first and last scanlines whose pixel centers are covered
+		int yStart = (y0 + 0x7FFF) >> 16;
+		int yMid = (y1 + 0x7FFF) >> 16;
+		int yEnd = (y2 + 0x7FFF) >> 16;
+		int xStart = (Math.min(x0, Math.min(x1, x2)) + 0x7FFF) >> 16;
+		int xEnd = (Math.max(x0, Math.max(x1, x2)) + 0x7FFF) >> 16;
+		// tested before clipping, so the vertices of small triangles are close together
+		boolean small = (xEnd - xStart) * (yEnd - yStart) <= SMALL_TRIANGLE
+				&& spanSink == null && idBuffer == null;
+		if (yStart < clipTop) yStart = clipTop;
+		if (yEnd > clipBottom) yEnd = clipBottom;
+		if (yStart >= yEnd) return;
+		if (xStart < clipLeft) xStart = clipLeft;
+		if (xEnd > clipRight) xEnd = clipRight;
+		if (xStart >= xEnd) return;
+
+		long area;
+		if (small) {
+			// same area and degenerate test as setup, without the gradients
+			area = (long) (x1 - x0) * (y2 - y0) - (long) (x2 - x0) * (y1 - y0);
+			if (area >> 16 == 0) return;
+			perspective = false;
+			dzdx = 0;
+			dudx = 0;
+			dvdx = 0;
+			dsdx = 0;
+			dsudx = 0;
+			dsvdx = 0;
+		} else {
+			area = setup(v, a, b, c);
+			if (area == 0) return;
+		}
+
+		// the long edge goes from the top vertex to the bottom one
+		int py = (yStart << 16) + 0x8000;
+		long oy = py - y0;
+		int longSlope = (int) (((long) (x2 - x0) << 16) / (y2 - y0));
+		int xLong = x0 + (int) (longSlope * oy >> 16);
+		int shortSlope;
+		int xShort;
+		if (yStart < yMid) {
+			shortSlope = (int) (((long) (x1 - x0) << 16) / (y1 - y0));
+			xShort = x0 + (int) (shortSlope * oy >> 16);
+		} else {
+			shortSlope = (int) (((long) (x2 - x1) << 16) / (y2 - y1));
+			xShort = x1 + (int) (shortSlope * (long) (py - y1) >> 16);
+		}
+		boolean longLeft = area > 0;
+
+		int clipLeft = this.clipLeft;
+		int clipRight = this.clipRight;
+		int stride = this.stride;
+		int offset = yStart * stride + targetOffset;
+		for (int iy = yStart; iy < yEnd; iy++, py += 0x10000, offset += stride) {
+			if (iy == yMid && iy != yStart) {
+				shortSlope = (int) (((long) (x2 - x1) << 16) / (y2 - y1));
+				xShort = x1 + (int) (shortSlope * (long) (py - y1) >> 16);
+			}
+			int xl;
+			int xr;
+			if (longLeft) {
+				xl = xLong;
+				xr = xShort;
+			} else {
+				xl = xShort;
+				xr = xLong;
+			}
+			int ixs = (xl + 0x7FFF) >> 16;
+			int ixe = (xr + 0x7FFF) >> 16;
+			if (ixs < clipLeft) ixs = clipLeft;
+			if (ixe > clipRight) ixe = clipRight;
+			if (ixs < ixe) {
+				if (small) {
+					fillSmallSpan(v, a, b, c, area, iy, ixs, ixe, offset);
+				} else {
+					beginSpan(ixs, iy);
+					if (spanSink != null) {
+						if (colorKey && texIndex != null) {
+							sinkKeyedSpan(iy, ixs, ixe - ixs);
+						} else {
+							spanSink.addSpan(this, iy, ixs, ixe, spanZ, dzdx);
+						}
+					} else if (idBuffer != null) {
+						fillIdSpan(offset + ixs, ixe - ixs);
+					} else {
+						fillSpan(offset + ixs, ixe - ixs);
+					}
+				}
+			}
+			xLong += longSlope;
+			xShort += shortSlope;
+		}
+	}
+
+	/**
+	 * Fills the quad split into the triangles {a, b, c} and {c, b, d} with a single
+	 * setup, walking its outline a, b, d, c. Its edges are walked like those of the
+	 * triangles, so the covered pixels are the same.
+	 *
+	 * @return false if the quad is not convex, its attributes do not lie on one plane
+	 * or it is small, then the triangles must be filled instead
+	 */
+	boolean fillQuad(int[] v, int a, int b, int c, int d) {
+		if (spanSink != null || idBuffer != null) return false;
+		int[] outline = quadOutline;
+		outline[0] = a;
+		outline[1] = b;
+		outline[2] = d;
+		outline[3] = c;
+		// every corner turns the same way, so the quad is convex and not a bow tie
+		int turn = 0;
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int k = 0; k < 4; k++) {
+			int p0 = outline[k + 3 & 3];
+			int p1 = outline[k];
+			int p2 = outline[k + 1 & 3];
+			long cross = (long) (v[p1 + X] - v[p0 + X]) * (v[p2 + Y] - v[p1 + Y])
+					- (long) (v[p1 + Y] - v[p0 + Y]) * (v[p2 + X] - v[p1 + X]);
+			int sign = cross > 0 ? 1 : cross < 0 ? -1 : 0;
+			if (sign == 0 || sign == -turn) return false;
+			turn = sign;
+			minX = Math.min(minX, v[p1 + X]);
+			minY = Math.min(minY, v[p1 + Y]);
+			maxX = Math.max(maxX, v[p1 + X]);
+			maxY = Math.max(maxY, v[p1 + Y]);
+		}
+		int yStart = (minY + 0x7FFF) >> 16;
+		int yEnd = (maxY + 0x7FFF) >> 16;
+		int xStart = (minX + 0x7FFF) >> 16;
+		int xEnd = (maxX + 0x7FFF) >> 16;
+		// left to the triangles, which fill them without setup
+		if ((xEnd - xStart) * (yEnd - yStart) <= SMALL_TRIANGLE * 2) return false;
+		if (yStart < clipTop) yStart = clipTop;
+		if (yEnd > clipBottom) yEnd = clipBottom;
+		if (xStart < clipLeft) xStart = clipLeft;
+		if (xEnd > clipRight) xEnd = clipRight;
+		if (yStart >= yEnd || xStart >= xEnd) return true;
+		if (setup(v, a, b, c) == 0 || !isOnPlane(v, a, b, c, d)) return false;
+
+		// edges from their top end, scanlines yTop to yBottom - 1
+		int[] edgeX = this.edgeX;
+		int[] edgeY = this.edgeY;
+		int[] edgeSlope = this.edgeSlope;
+		int[] edgeTop = this.edgeTop;
+		int[] edgeBottom = this.edgeBottom;
+		for (int k = 0; k < 4; k++) {
+			int p0 = outline[k];
+			int p1 = outline[k + 1 & 3];
+			if (v[p0 + Y] > v[p1 + Y]) {
+				int t = p0;
+				p0 = p1;
+				p1 = t;
+			}
+			int x0 = v[p0 + X];
+			int y0 = v[p0 + Y];
+			int y1 = v[p1 + Y];
+			edgeX[k] = x0;
+			edgeY[k] = y0;
+			edgeTop[k] = (y0 + 0x7FFF) >> 16;
+			edgeBottom[k] = (y1 + 0x7FFF) >> 16;
+			edgeSlope[k] = y1 == y0 ? 0 : (int) (((long) (v[p1 + X] - x0) << 16) / (y1 - y0));
+		}
+
+		int clipLeft = this.clipLeft;
+		int clipRight = this.clipRight;
+		int stride = this.stride;
+		int offset = yStart * stride + targetOffset;
+		int py = (yStart << 16) + 0x8000;
+		for (int iy = yStart; iy < yEnd; iy++, py += 0x10000, offset += stride) {
+			// a convex outline crosses each scanline twice
+			int xl = Integer.MAX_VALUE;
+			int xr = Integer.MIN_VALUE;
+			for (int k = 0; k < 4; k++) {
+				if (iy < edgeTop[k] || iy >= edgeBottom[k]) continue;
+				int x = edgeX[k] + (int) (edgeSlope[k] * (long) (py - edgeY[k]) >> 16);
+				if (x < xl) xl = x;
+				if (x > xr) xr = x;
+			}
+			int ixs = (xl + 0x7FFF) >> 16;
+			int ixe = (xr + 0x7FFF) >> 16;
+			if (ixs < clipLeft) ixs = clipLeft;
+			if (ixe > clipRight) ixe = clipRight;
+			if (ixs < ixe) {
+				beginSpan(ixs, iy);
+				fillSpan(offset + ixs, ixe - ixs);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests that the plane set up for {a, b, c} also interpolates the attributes of d,
+	 * within one unit of each.
+	 */
+	private boolean isOnPlane(int[] v, int a, int b, int c, int d) {
+		long ox = v[d + X] - refX;
+		long oy = v[d + Y] - refY;
+		if (!isNear(baseZ + (dzdx * ox >> 16) + (dzdy * oy >> 16), v[d + Z])) return false;
+		if (texIndex != null) {
+			if (perspective) {
+				int qd = v[d + Q];
+				if (qd <= 0) return false;
+				int max = Math.max(v[a + Q], Math.max(v[b + Q], v[c + Q]));
+				long w = baseW + (dwdx * ox >> 16) + (dwdy * oy >> 16);
+				long wd = ((long) qd << 32) / max;
+				// w is within 1 / 256 of its value at d, like the texture coordinates
+				if (w <= 0 || Math.abs(w - wd) > wd >> 8) return false;
+				long uw = baseUW + (duwdx * ox >> 16) + (duwdy * oy >> 16);
+				long vw = baseVW + (dvwdx * ox >> 16) + (dvwdy * oy >> 16);
+				if (!isNear((uw << 28) / w, v[d + U]) || !isNear((vw << 28) / w, v[d + V])) return false;
+			} else {
+				// the triangle {c, b, d} would be mapped in perspective
+				int qb = v[b + Q];
+				int qc = v[c + Q];
+				int qd = v[d + Q];
+				if (SUBDIVISION > 0 && qb > 0 && qc > 0 && qd > 0 && (qb != qc || qc != qd)) return false;
+				if (!isNear(baseU + (dudx * ox >> 16) + (dudy * oy >> 16), v[d + U])
+						|| !isNear(baseV + (dvdx * ox >> 16) + (dvdy * oy >> 16), v[d + V])) {
+					return false;
+				}
+			}
+		}
+		if (shading && !isNear(baseS + (dsdx * ox >> 16) + (dsdy * oy >> 16), v[d + S])) return false;
+		if (sphereIndex != null) {
+			if (!isNear(baseSU + (dsudx * ox >> 16) + (dsudy * oy >> 16), v[d + SU])
+					|| !isNear(baseSV + (dsvdx * ox >> 16) + (dsvdy * oy >> 16), v[d + SV])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param value 16.16
+	 */
+	private static boolean isNear(long value, int expected) {
+		return Math.abs(value - ((long) expected << 16)) <= 0x10000;
+	}
+
+	/**
+	 * Fills the pixels of a row of a small triangle one by one, each interpolated from
+	 * the vertices with its edge functions instead of the plane gradients.
+	 * Coverage comes from the edge walk of {@link #fillTriangle}, so shared edges match.
+	 *
+	 * @param area doubled signed area, 16.16 times 16.16
+	 */
+	private void fillSmallSpan(int[] v, int a, int b, int c, long area, int y, int xs, int xe, int offset) {
+		long ax = v[a + X];
+		long ay = v[a + Y];
+		long bx = v[b + X];
+		long by = v[b + Y];
+		long cx = v[c + X];
+		long cy = v[c + Y];
+		long div = area >> 16;
+		long py = ((long) y << 16) + 0x8000;
+		for (int x = xs; x < xe; x++) {
+			long px = ((long) x << 16) + 0x8000;
+			long wa = (cx - bx) * (py - by) - (cy - by) * (px - bx);
+			long wb = (ax - cx) * (py - cy) - (ay - cy) * (px - cx);
+			long wc = area - wa - wb;
+			spanZ = interpolate(v, a, b, c, Z, wa, wb, wc, div);
+			if (texIndex != null) {
+				spanU = interpolate(v, a, b, c, U, wa, wb, wc, div);
+				spanV = interpolate(v, a, b, c, V, wa, wb, wc, div);
+			}
+			if (shading) {
+				spanS = interpolate(v, a, b, c, S, wa, wb, wc, div);
+			}
+			if (sphereIndex != null) {
+				spanSU = interpolate(v, a, b, c, SU, wa, wb, wc, div);
+				spanSV = interpolate(v, a, b, c, SV, wa, wb, wc, div);
+			}
+			fillSpan(offset + x, 1);
+		}
+	}
+
+	/**
+	 * @param div doubled signed area shifted down to 16.16
+	 * @return attribute {@code k} at a point with the given edge functions, 16.16
+	 */
+	private static int interpolate(int[] v, int a, int b, int c, int k, long wa, long wb, long wc, long div) {
+		return (int) (((long) v[a + k] * wa + (long) v[b + k] * wb + (long) v[c + k] * wc) / div);
+	}
+
+	/**
+	 * Fills a screen aligned rectangle at one depth without triangle setup. Texture
+	 * coordinates step from (u0, v0) at the left and top edges to (u1, v1) at the right
+	 * and bottom ones.
+	 *
+	 * @param left edges in 16.16, pixel centers inside are covered like by triangles
+	 */
+	void fillRect(int left, int top, int right, int bottom, int z, int u0, int v0, int u1, int v1) {
+		if (right <= left || bottom <= top) return;
+		int xs = (left + 0x7FFF) >> 16;
+		int xe = (right + 0x7FFF) >> 16;
+		int ys = (top + 0x7FFF) >> 16;
+		int ye = (bottom + 0x7FFF) >> 16;
+		if (xs < clipLeft) xs = clipLeft;
+		if (xe > clipRight) xe = clipRight;
+		if (ys < clipTop) ys = clipTop;
+		if (ye > clipBottom) ye = clipBottom;
+		if (xs >= xe || ys >= ye) return;
+
+		int du = gradient((long) (u1 - u0) << 32, right - left);
+		int dv = gradient((long) (v1 - v0) << 32, bottom - top);
+		perspective = false;
+		dzdx = 0;
+		dudx = du;
+		dvdx = 0;
+		dsdx = 0;
+		int u = (int) (((long) u0 << 16) + ((long) du * (((long) xs << 16) + 0x8000 - left) >> 16));
+		long v = ((long) v0 << 16) + ((long) dv * (((long) ys << 16) + 0x8000 - top) >> 16);
+		int stride = this.stride;
+		int offset = ys * stride + xs + targetOffset;
+		for (int y = ys; y < ye; y++, offset += stride, v += dv) {
+			spanZ = z << 16;
+			spanU = u;
+			spanV = (int) v;
+			fillSpan(offset, xe - xs);
+		}
+	}
+
+	/**
+	 * DDA line between 16.16 screen points, one pixel per step along the major axis
+	 * with the depth interpolated. Equal endpoints draw a single pixel.
+	 */
+	void drawLine(int x0, int y0, int z0, int x1, int y1, int z1) {
+		int ix0 = x0 >> 16;
+		int iy0 = y0 >> 16;
+		int ix1 = x1 >> 16;
+		int iy1 = y1 >> 16;
+		if (Math.max(ix0, ix1) < clipLeft || Math.min(ix0, ix1) >= clipRight
+				|| Math.max(iy0, iy1) < clipTop || Math.min(iy0, iy1) >= clipBottom) {
+			return;
+		}
+		int steps = Math.max(Math.abs(ix1 - ix0), Math.abs(iy1 - iy0));
+		int n = Math.max(steps, 1);
+		boolean xMajor = Math.abs(ix1 - ix0) >= Math.abs(iy1 - iy0);
+		// the major axis steps by whole pixels, the minor one in 16.16
+		int major = xMajor ? ix0 : iy0;
+		int majorStep = (xMajor ? ix1 - ix0 : iy1 - iy0) < 0 ? -1 : 1;
+		int minor = xMajor ? y0 : x0;
+		int minorStep = (int) (((long) (xMajor ? y1 - y0 : x1 - x0)) / n);
+		int z = z0 << 16;
+		int dz = (int) (((long) (z1 - z0) << 16) / n);
+		perspective = false;
+		dzdx = 0;
+		int stride = this.stride;
+		for (int i = 0; i <= steps; i++, major += majorStep, minor += minorStep, z += dz) {
+			int x = xMajor ? major : minor >> 16;
+			int y = xMajor ? minor >> 16 : major;
+			if (x < clipLeft || x >= clipRight || y < clipTop || y >= clipBottom) continue;
+			spanZ = z;
+			fillSpan(y * stride + x + targetOffset, 1);
+		}
+	}
+
+	/**
+	 * Half-space rasterization in 8x8 blocks. Blocks entirely outside one of the edges are
+	 * skipped, blocks entirely inside all of them are filled without per pixel edge tests.
+	 * Edge functions are evaluated in 24.8 with the top-left fill convention.
+	 */
+	void fillTriangleBlocks(int[] v, int a, int b, int c) {
+		long area = setup(v, a, b, c);
+		if (area == 0) return;
+		if (area < 0) {
+			int t = b;
+			b = c;
+			c = t;
+		}
+		int x0 = v[a + X] >> 8;
+		int y0 = v[a + Y] >> 8;
+		int x1 = v[b + X] >> 8;
+		int y1 = v[b + Y] >> 8;
+		int x2 = v[c + X] >> 8;
+		int y2 = v[c + Y] >> 8;
+
+		// bounding box of the covered pixel centers
+		int minX = Math.min(x0, Math.min(x1, x2));
+		int maxX = Math.max(x0, Math.max(x1, x2));
+		int minY = Math.min(y0, Math.min(y1, y2));
+		int maxY = Math.max(y0, Math.max(y1, y2));
+		minX = Math.max((minX + 127) >> 8, clipLeft);
+		maxX = Math.min((maxX + 127) >> 8, clipRight);
+		minY = Math.max((minY + 127) >> 8, clipTop);
+		maxY = Math.min((maxY + 127) >> 8, clipBottom);
+		if (minX >= maxX || minY >= maxY) return;
+
+		// edge functions are positive inside, biased so that only top-left edges include 0
+		long e0x = x1 - x0, e0y = y1 - y0;
+		long e1x = x2 - x1, e1y = y2 - y1;
+		long e2x = x0 - x2, e2y = y0 - y2;
+		long c0 = e0x * (128 - y0) - e0y * (128 - x0) + (e0y < 0 || e0y == 0 && e0x > 0 ? 0 : -1);
+		long c1 = e1x * (128 - y1) - e1y * (128 - x1) + (e1y < 0 || e1y == 0 && e1x > 0 ? 0 : -1);
+		long c2 = e2x * (128 - y2) - e2y * (128 - x2) + (e2y < 0 || e2y == 0 && e2x > 0 ? 0 : -1);
+		// per pixel steps
+		e0x <<= 8;
+		e0y <<= 8;
+		e1x <<= 8;
+		e1y <<= 8;
+		e2x <<= 8;
+		e2y <<= 8;
+
+		int stride = this.stride;
+		for (int by = minY & ~7; by < maxY; by += 8) {
+			int bys = Math.max(by, minY);
+			int bye = Math.min(by + 8, maxY);
+			for (int bx = minX & ~7; bx < maxX; bx += 8) {
+				int bxs = Math.max(bx, minX);
+				int bxe = Math.min(bx + 8, maxX) - 1;
+				// edge values at the block corners
+				long w0 = c0 + e0x * bys - e0y * bxs;
+				long w1 = c1 + e1x * bys - e1y * bxs;
+				long w2 = c2 + e2x * bys - e2y * bxs;
+				int in0 = blockCoverage(w0, e0x * (bye - 1 - bys), -e0y * (bxe - bxs));
+				int in1 = blockCoverage(w1, e1x * (bye - 1 - bys), -e1y * (bxe - bxs));
+				int in2 = blockCoverage(w2, e2x * (bye - 1 - bys), -e2y * (bxe - bxs));
+				if (in0 == 0 || in1 == 0 || in2 == 0) {
+					continue;
+				}
+				int offset = bys * stride + targetOffset;
+				if (in0 == 4 && in1 == 4 && in2 == 4) {
+					for (int iy = bys; iy < bye; iy++, offset += stride) {
+						beginSpan(bxs, iy);
+						fillSpan(offset + bxs, bxe + 1 - bxs);
+					}
+					continue;
+				}
+				for (int iy = bys; iy < bye; iy++, offset += stride) {
+					long r0 = w0;
+					long r1 = w1;
+					long r2 = w2;
+					int start = -1;
+					int ix = bxs;
+					for (; ix <= bxe; ix++, r0 -= e0y, r1 -= e1y, r2 -= e2y) {
+						if ((r0 | r1 | r2) >= 0) {
+							if (start < 0) start = ix;
+						} else if (start >= 0) {
+							break;
+						}
+					}
+					if (start >= 0) {
+						beginSpan(start, iy);
+						fillSpan(offset + start, ix - start);
+					}
+					w0 += e0x;
+					w1 += e1x;
+					w2 += e2x;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return how many corners of a block are inside an edge
+	 */
+	private static int blockCoverage(long w, long dy, long dx) {
+		int n = 0;
+		if (w >= 0) n++;
+		if (w + dx >= 0) n++;
+		if (w + dy >= 0) n++;
+		if (w + dx + dy >= 0) n++;
+		return n;
+	}
+
+	/**
+	 * Passes the runs of opaque texels of a color keyed span to the span sink,
+	 * so the transparent ones do not hide what is behind them.
+	 */
+	private void sinkKeyedSpan(int y, int x, int count) {
+		byte[] texIndex = this.texIndex;
+		int z = spanZ;
+		int dz = dzdx;
+		int u = spanU;
+		int v = spanV;
+		int du = dudx;
+		int dv = dvdx;
+		int next = perspective ? 0 : count;
+		int start = -1;
+		int startZ = 0;
+		for (int i = 0; i <= count; i++, z += dz, u += du, v += dv) {
+			if (i == next && i < count) {
+				// start of a perspective subdivision
+				perspectiveAt(i);
+				u = pixelU;
+				v = pixelV;
+				next = Math.min(i + SUBDIVISION, count);
+				perspectiveAt(next);
+				du = (pixelU - u) / (next - i);
+				dv = (pixelV - v) / (next - i);
+			}
+			boolean opaque = i < count
+					&& texIndex[((v >> 16) & texVMask) << texShift | ((u >> 16) & texUMask)] != 0;
+			if (opaque) {
+				if (start < 0) {
+					start = i;
+					startZ = z;
+				}
+			} else if (start >= 0) {
+				spanSink.addSpan(this, y, x + start, x + i, startZ, dz);
+				// the sink may draw the run, which moves the span state
+				beginSpan(x, y);
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	 * Visibility pass, only color keyed texels are fetched.
+	 */
+	private void fillIdSpan(int offset, int count) {
+		int[] idBuffer = this.idBuffer;
+		short[] depthBuffer = this.depthBuffer;
+		int id = triangleId;
+		int z = spanZ;
+		int dz = dzdx;
+		if (colorKey && texIndex != null) {
+			byte[] texIndex = this.texIndex;
+			int u = spanU;
+			int v = spanV;
+			int du = dudx;
+			int dv = dvdx;
+			int next = perspective ? 0 : count;
+			for (int i = 0; i < count; i++, offset++, z += dz, u += du, v += dv) {
+				if (i == next) {
+					// start of a perspective subdivision
+					perspectiveAt(i);
+					u = pixelU;
+					v = pixelV;
+					next = Math.min(i + SUBDIVISION, count);
+					perspectiveAt(next);
+					du = (pixelU - u) / (next - i);
+					dv = (pixelV - v) / (next - i);
+				}
+				int depth = z >> 16;
+				if (depth < depthBuffer[offset]
+						&& texIndex[((v >> 16) & texVMask) << texShift | ((u >> 16) & texUMask)] != 0) {
+					depthBuffer[offset] = (short) depth;
+					idBuffer[offset] = id;
+				}
+			}
+		} else {
+			for (int end = offset + count; offset < end; offset++, z += dz) {
+				int depth = z >> 16;
+				if (depth < depthBuffer[offset]) {
+					depthBuffer[offset] = (short) depth;
+					idBuffer[offset] = id;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests the span against the depth buffer and shades the runs of visible pixels.
+	 */
+	private void fillSpan(int offset, int count) {
+		if (flat) {
+			fillFlatSpan(offset, count);
+			return;
+		}
+		short[] depthBuffer = this.depthBuffer;
+		if (depthBuffer == null) {
+			fillRun(offset, count, 0, spanZ);
+			return;
+		}
+		boolean write = depthPassWrite;
+		int z = spanZ;
+		int dz = dzdx;
+		int i = 0;
+		while (i < count) {
+			while (z >> 16 >= depthBuffer[offset + i]) {
+				z += dz;
+				if (++i == count) return;
+			}
+			int start = i;
+			int zStart = z;
+			if (write) {
+				do {
+					depthBuffer[offset + i] = (short) (z >> 16);
+					z += dz;
+				} while (++i < count && z >> 16 < depthBuffer[offset + i]);
+			} else {
+				do {
+					z += dz;
+				} while (++i < count && z >> 16 < depthBuffer[offset + i]);
+			}
+			fillRun(offset + start, i - start, start, zStart);
+		}
+	}
+
+	/**
+	 * Same as {@link #fillSpan} for a flat color, runs of visible pixels are filled in bulk.
+	 */
+	private void fillFlatSpan(int offset, int count) {
+		int[] colorBuffer = this.colorBuffer;
+		short[] colorBuffer565 = this.colorBuffer565;
+		int c = pixel(color);
+		short[] depthBuffer = this.depthBuffer;
+		if (depthBuffer == null) {
+			if (RGB565) {
+				fill(colorBuffer565, offset, count, (short) c);
+			} else {
+				fill(colorBuffer, offset, count, c);
+			}
+			return;
+		}
+		boolean write = depthPassWrite;
+		int z = spanZ;
+		int dz = dzdx;
+		int i = 0;
+		while (i < count) {
+			while (z >> 16 >= depthBuffer[offset + i]) {
+				z += dz;
+				if (++i == count) return;
+			}
+			int start = i;
+			if (write) {
+				do {
+					depthBuffer[offset + i] = (short) (z >> 16);
+					z += dz;
+				} while (++i < count && z >> 16 < depthBuffer[offset + i]);
+			} else {
+				do {
+					z += dz;
+				} while (++i < count && z >> 16 < depthBuffer[offset + i]);
+			}
+			if (RGB565) {
+				fill(colorBuffer565, offset + start, i - start, (short) c);
+			} else {
+				fill(colorBuffer, offset + start, i - start, c);
+			}
+		}
+	}
+
+	/**
+	 * Fills {@code count} elements with {@code c}, long runs by doubling copies.
+	 */
+	static void fill(int[] dst, int offset, int count, int c) {
+		if (count < 16) {
+			for (int end = offset + count; offset < end; offset++) {
+				dst[offset] = c;
+			}
+			return;
+		}
+		for (int i = 0; i < 8; i++) {
+			dst[offset + i] = c;
+		}
+		for (int n = 8; n < count; n <<= 1) {
+			System.arraycopy(dst, offset, dst, offset + n, Math.min(n, count - n));
+		}
+	}
+
+	static void fill(short[] dst, int offset, int count, short c) {
+		if (count < 16) {
+			for (int end = offset + count; offset < end; offset++) {
+				dst[offset] = c;
+			}
+			return;
+		}
+		for (int i = 0; i < 8; i++) {
+			dst[offset + i] = c;
+		}
+		for (int n = 8; n < count; n <<= 1) {
+			System.arraycopy(dst, offset, dst, offset + n, Math.min(n, count - n));
+		}
+	}
+
+	/**
+	 * @param skip pixels from the span start
+	 * @param z    depth at the run start
+	 */
+	private void fillRun(int offset, int count, int skip, int z) {
+		if (direct) {
+			shadeRun(colorBuffer, offset, count, skip);
+			return;
+		}
+		int[] row = rowBuffer;
+		if (row.length < count) {
+			row = rowBuffer = new int[count];
+		}
+		for (int i = 0; i < count; i++) {
+			row[i] = 0;
+		}
+		shadeRun(row, 0, count, skip);
+		if (sphereIndex != null) {
+			addSphere(row, count, skip);
+		}
+		if (RGB565) {
+			storeRow565(row, offset, count, z);
+			return;
+		}
+		if (blendMode != 0) {
+			blendRow(row, offset, count);
+			return;
+		}
+		int[] colorBuffer = this.colorBuffer;
+		if (keyedDepth) {
+			short[] depthBuffer = this.depthBuffer;
+			int dz = dzdx;
+			for (int i = 0; i < count; i++, offset++, z += dz) {
+				int c = row[i];
+				if (c != 0) {
+					colorBuffer[offset] = c;
+					depthBuffer[offset] = (short) (z >> 16);
+				}
+			}
+		} else {
+			for (int i = 0; i < count; i++, offset++) {
+				int c = row[i];
+				if (c != 0) {
+					colorBuffer[offset] = c;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes shaded pixels into {@code dst}, color keyed texels are left untouched.
+	 */
+	private void shadeRun(int[] dst, int o, int count, int skip) {
+		int s = spanS + dsdx * skip;
+		if (!perspective) {
+			shadeKernel(kernel, dst, o, count, spanU + dudx * skip, spanV + dvdx * skip, dudx, dvdx, s);
+			return;
+		}
+		// subdivisions start every SUBDIVISION pixels from the span start,
+		// so runs split by the depth test map the same as the whole span
+		int k = skip - skip % SUBDIVISION;
+		int end = skip + count;
+		perspectiveAt(k);
+		while (skip < end) {
+			int u = pixelU;
+			int v = pixelV;
+			int next = Math.min(k + SUBDIVISION, end);
+			perspectiveAt(next);
+			int du = (pixelU - u) / (next - k);
+			int dv = (pixelV - v) / (next - k);
+			int n = next - skip;
+			shadeKernel(kernel, dst, o, n, u + du * (skip - k), v + dv * (skip - k), du, dv, s);
+			o += n;
+			s += dsdx * n;
+			skip = k = next;
+		}
+	}
+
+	/**
+	 * Span kernels, texture coordinates step by {@code du} and {@code dv}.
+	 */
+	private void shadeKernel(int k, int[] dst, int o, int count, int u, int v, int du, int dv, int s) {
+		if (k >= K_TEX_KEY && du > 0 && keyRuns != null && v >> 16 == v + dv * (count - 1) >> 16) {
+			shadeKeyRuns(k, dst, o, count, u, v, du, s);
+			return;
+		}
+		int end = o + count;
+		int ds = dsdx;
+		switch (k) {
+			case K_FLAT:
+				fill(dst, o, count, pixel(color));
+				break;
+			case K_FLAT_LIT: {
+				if (RGB565) {
+					// channels spread apart to 00000GGG GGG00000 RRRRR000 000BBBBB,
+					// so one multiply by a 5-bit light scales all of them
+					int c = pixel(color);
+					c = (c | c << 16) & 0x07E0F81F;
+					for (; o < end; o++, s += ds) {
+						int l = s >> 16;
+						l = l < 0 ? 0 : l > 255 ? 32 : l + 1 >> 3;
+						int p = c * l >>> 5 & 0x07E0F81F;
+						p = (p | p >>> 16) & 0xFFFF;
+						dst[o] = p == 0 ? BLACK_565 : p;
+					}
+					break;
+				}
+				int rb = color & 0xFF00FF;
+				int g = color & 0xFF00;
+				for (; o < end; o++, s += ds) {
+					int l = s >> 16;
+					l = l < 0 ? 1 : l > 255 ? 256 : l + 1;
+					dst[o] = 0xFF000000 | (rb * l >>> 8 & 0xFF00FF) | (g * l >> 8 & 0xFF00);
+				}
+				break;
+			}
+			case K_FLAT_TOON: {
+				int low = pixel(shade(color, toonLow + 1));
+				int high = pixel(shade(color, toonHigh + 1));
+				int threshold = toonThreshold;
+				for (; o < end; o++, s += ds) {
+					dst[o] = s >> 16 < threshold ? low : high;
+				}
+				break;
+			}
+			case K_TEX: {
+				byte[] index = texIndex;
+				int[] palette = texPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				for (; o < end; o++, u += du, v += dv) {
+					dst[o] = palette[index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF];
+				}
+				break;
+			}
+			case K_TEX_LIT: {
+				byte[] index = texIndex;
+				int[] palette = litPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				for (; o < end; o++, u += du, v += dv, s += ds) {
+					int l = s >> 16;
+					l = l < 0 ? 0 : l > 255 ? 255 : l;
+					dst[o] = palette[(l >> Texture.LIGHT_SHIFT) << 8
+							| index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF];
+				}
+				break;
+			}
+			case K_TEX_TOON: {
+				byte[] index = texIndex;
+				int[] palette = toonPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				int threshold = toonThreshold;
+				for (; o < end; o++, u += du, v += dv, s += ds) {
+					dst[o] = palette[(s >> 16 < threshold ? 0 : 256)
+							| index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF];
+				}
+				break;
+			}
+			case K_TEX_KEY: {
+				byte[] index = texIndex;
+				int[] palette = texPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				for (; o < end; o++, u += du, v += dv) {
+					int idx = index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF;
+					if (idx != 0) {
+						dst[o] = palette[idx];
+					}
+				}
+				break;
+			}
+			case K_TEX_KEY_LIT: {
+				byte[] index = texIndex;
+				int[] palette = litPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				for (; o < end; o++, u += du, v += dv, s += ds) {
+					int idx = index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF;
+					if (idx != 0) {
+						int l = s >> 16;
+						l = l < 0 ? 0 : l > 255 ? 255 : l;
+						dst[o] = palette[(l >> Texture.LIGHT_SHIFT) << 8 | idx];
+					}
+				}
+				break;
+			}
+			case K_TEX_KEY_TOON: {
+				byte[] index = texIndex;
+				int[] palette = toonPalette;
+				int shift = texShift;
+				int uMask = texUMask;
+				int vMask = texVMask;
+				int threshold = toonThreshold;
+				for (; o < end; o++, u += du, v += dv, s += ds) {
+					int idx = index[((v >> 16) & vMask) << shift | ((u >> 16) & uMask)] & 0xFF;
+					if (idx != 0) {
+						dst[o] = palette[(s >> 16 < threshold ? 0 : 256) | idx];
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Color keyed kernels for a span within one texel row. Runs of key colored texels are
+	 * skipped, opaque runs go through the kernel without the key test.
+	 */
+	private void shadeKeyRuns(int k, int[] dst, int o, int count, int u, int v, int du, int s) {
+		byte[] index = texIndex;
+		byte[] runs = keyRuns;
+		int row = ((v >> 16) & texVMask) << texShift;
+		int uMask = texUMask;
+		int ds = dsdx;
+		int opaque = k - K_TEX_KEY + K_TEX;
+		int end = o + count;
+		while (o < end) {
+			int tu = u >> 16;
+			int t = row | (tu & uMask);
+			// pixels until u leaves the run
+			int n = (int) ((((long) tu + (runs[t] & 0xFF) << 16) - u + du - 1) / du);
+			if (n > end - o) n = end - o;
+			if (index[t] != 0) {
+				shadeKernel(opaque, dst, o, n, u, v, du, 0, s);
+			}
+			o += n;
+			u += du * n;
+			s += ds * n;
+		}
+	}
+
+	/**
+	 * Adds the sphere map to the shaded pixels of a row.
+	 */
+	private void addSphere(int[] row, int count, int skip) {
+		byte[] index = sphereIndex;
+		int[] palette = spherePalette;
+		int shift = sphereShift;
+		int uMask = sphereUMask;
+		int vMask = sphereVMask;
+		int su = spanSU + dsudx * skip;
+		int sv = spanSV + dsvdx * skip;
+		int dsu = dsudx;
+		int dsv = dsvdx;
+		for (int i = 0; i < count; i++, su += dsu, sv += dsv) {
+			int c = row[i];
+			if (c == 0) continue;
+			int sc = palette[index[((sv >> 16) & vMask) << shift | ((su >> 16) & uMask)] & 0xFF];
+			if (RGB565) {
+				row[i] = add565(c, sc);
+				continue;
+			}
+			int sum = (c & 0x7F7F7F) + (sc & 0x7F7F7F);
+			int carry = (c & sc | (c | sc) & sum) & 0x808080;
+			row[i] = 0xFF000000 | sum ^ (c ^ sc) & 0x808080 | (carry << 1) - (carry >>> 7);
+		}
+	}
+
+	/**
+	 * Blends the shaded pixels of a row into the color buffer.
+	 * <p>
+	 * All three channels are blended at once. The low 7 bits of each channel are summed
+	 * apart so nothing crosses into the next channel, the top bits are then added in
+	 * and their carries or borrows are spread into saturation masks.
+	 */
+	private void blendRow(int[] row, int offset, int count) {
+		int[] colorBuffer = this.colorBuffer;
+		switch (blendMode) {
+			case Model.Polygon.BLEND_HALF:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src == 0) continue;
+					int dst = colorBuffer[offset];
+					colorBuffer[offset] = 0xFF000000 | (src & dst) + (((src ^ dst) & 0xFEFEFE) >>> 1);
+				}
+				break;
+			case Model.Polygon.BLEND_ADD:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src == 0) continue;
+					int dst = colorBuffer[offset];
+					int sum = (src & 0x7F7F7F) + (dst & 0x7F7F7F);
+					int carry = (src & dst | (src | dst) & sum) & 0x808080;
+					colorBuffer[offset] = 0xFF000000 | sum ^ (src ^ dst) & 0x808080 | (carry << 1) - (carry >>> 7);
+				}
+				break;
+			case Model.Polygon.BLEND_SUB:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src == 0) continue;
+					int dst = colorBuffer[offset];
+					int diff = ((dst | 0x808080) - (src & 0x7F7F7F)) ^ (~dst ^ src) & 0x808080;
+					int borrow = (~dst & src | ~(dst ^ src) & diff) & 0x808080;
+					colorBuffer[offset] = 0xFF000000 | diff & ~((borrow << 1) - (borrow >>> 7)) & 0xFFFFFF;
+				}
+				break;
+			default:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src != 0) {
+						colorBuffer[offset] = src;
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Same as {@link #blendRow} for RGB565, also stores opaque rows.
+	 * <p>
+	 * Red and blue are blended together with guard bits above each of them,
+	 * green apart, carries or borrows into the guard bits become saturation masks.
+	 *
+	 * @param z depth at the row start
+	 */
+	private void storeRow565(int[] row, int offset, int count, int z) {
+		short[] colorBuffer = colorBuffer565;
+		switch (blendMode) {
+			case Model.Polygon.BLEND_HALF:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src == 0) continue;
+					int dst = colorBuffer[offset] & 0xFFFF;
+					int c = (src & dst) + (((src ^ dst) & 0xF7DE) >>> 1);
+					colorBuffer[offset] = (short) (c == 0 ? BLACK_565 : c);
+				}
+				break;
+			case Model.Polygon.BLEND_ADD:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src != 0) {
+						colorBuffer[offset] = (short) add565(src, colorBuffer[offset] & 0xFFFF);
+					}
+				}
+				break;
+			case Model.Polygon.BLEND_SUB:
+				for (int i = 0; i < count; i++, offset++) {
+					int src = row[i];
+					if (src == 0) continue;
+					int dst = colorBuffer[offset] & 0xFFFF;
+					int rb = (dst & 0xF81F | 0x10020) - (src & 0xF81F);
+					int g = (dst & 0x07E0 | 0x0800) - (src & 0x07E0);
+					int rbKeep = rb & 0x10020;
+					int gKeep = g & 0x0800;
+					int c = rb & rbKeep - (rbKeep >>> 5) | g & gKeep - (gKeep >>> 6);
+					colorBuffer[offset] = (short) (c == 0 ? BLACK_565 : c);
+				}
+				break;
+			default:
+				if (keyedDepth) {
+					short[] depthBuffer = this.depthBuffer;
+					int dz = dzdx;
+					for (int i = 0; i < count; i++, offset++, z += dz) {
+						int c = row[i];
+						if (c != 0) {
+							colorBuffer[offset] = (short) c;
+							depthBuffer[offset] = (short) (z >> 16);
+						}
+					}
+				} else {
+					for (int i = 0; i < count; i++, offset++) {
+						int c = row[i];
+						if (c != 0) {
+							colorBuffer[offset] = (short) c;
+						}
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Saturating sum of two RGB565 pixels.
+	 */
+	private static int add565(int a, int b) {
+		int rb = (a & 0xF81F) + (b & 0xF81F);
+		int g = (a & 0x07E0) + (b & 0x07E0);
+		int rbCarry = rb & 0x10020;
+		int gCarry = g & 0x0800;
+		return (rb | rbCarry - (rbCarry >>> 5)) & 0xF81F | (g | gCarry - (gCarry >>> 6)) & 0x07E0;
+	}
+
+	/**
+	 * @return an opaque pixel of the color buffer format
+	 */
+	static int pixel(int rgb) {
+		if (!RGB565) {
+			return 0xFF000000 | rgb;
+		}
+		int p = to565(rgb);
+		return p == 0 ? BLACK_565 : p;
+	}
+
+	static int to565(int rgb) {
+		return (rgb >> 8 & 0xF800) | (rgb >> 5 & 0x07E0) | (rgb >> 3 & 0x001F);
+	}
+
+	/**
+	 * @return ARGB color of an RGB565 pixel, 0 stays transparent
+	 */
+	static int toARGB(int p) {
+		if (p == 0) return 0;
+		return 0xFF000000 | (p & 0xF800) << 8 | (p & 0xE000) << 3 | (p & 0x07E0) << 5 | (p & 0x0600) >> 1
+				| (p & 0x001F) << 3 | (p & 0x001C) >> 2;
+	}
+
+	/**
+	 * @param l light level + 1, 1 - 256
+	 */
+	static int shade(int c, int l) {
+		return ((c & 0xFF00FF) * l >>> 8 & 0xFF00FF) | ((c & 0xFF00) * l >> 8 & 0xFF00);
+	}
+
+	/**
+	 * Picks the span kernel and the path of its output for the current material and target.
+	 */
+	private void updateKernel() {
+		boolean keyed = texIndex != null && colorKey;
+		int k = texIndex == null ? K_FLAT : keyed ? K_TEX_KEY : K_TEX;
+		if (shading) {
+			k += toon ? 2 : 1;
+		}
+		kernel = k;
+		keyedDepth = keyed && depthWrite && depthBuffer != null;
+		depthPassWrite = depthWrite && !keyed;
+		boolean opaque = blendMode == 0 && sphereIndex == null && !keyedDepth;
+		// kernels write ints, RGB565 rows are stored through the row buffer
+		direct = opaque && !RGB565;
+		flat = k == K_FLAT && opaque;
+	}
+
+	private static int gradient(long numerator, long div) {
+		long g = numerator / div;
+		if (g > Integer.MAX_VALUE) return Integer.MAX_VALUE;
+		if (g < Integer.MIN_VALUE) return Integer.MIN_VALUE;
+		return (int) g;
+	}
+}
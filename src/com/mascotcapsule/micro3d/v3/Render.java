@@ -16,90 +16,116 @@
 
 package com.mascotcapsule.micro3d.v3;
 
-import com.mascotcapsule.micro3d.v3.Utils;
-import static android.opengl.GLES20.*;
-import static com.mascotcapsule.micro3d.v3.Graphics3D.*;
-import static com.mascotcapsule.micro3d.v3.Util3D.TAG;
-import static com.mascotcapsule.micro3d.v3.Utils.TO_FLOAT;
-
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.PorterDuff;
-import android.graphics.Rect;
-import android.opengl.GLES20;
-import android.opengl.GLU;
-import android.opengl.GLUtils;
-import android.opengl.Matrix;
-import android.util.Log;
-
-import com.mascotcapsule.micro3d.v3.AffineTrans;
-import com.mascotcapsule.micro3d.v3.Effect3D;
-import com.mascotcapsule.micro3d.v3.Figure;
-import com.mascotcapsule.micro3d.v3.FigureLayout;
-import com.mascotcapsule.micro3d.v3.Graphics3D;
-import com.mascotcapsule.micro3d.v3.Light;
 import com.mascotcapsule.micro3d.v3.RenderNode.FigureNode;
-import com.mascotcapsule.micro3d.v3.Texture;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.LinkedList;
-
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
+import com.mascotcapsule.micro3d.v3.RenderNode.PrimitiveNode;
+
+import java.util.Vector;
+
 import javax.microedition.lcdui.Graphics;
 
 class Render {
-	private final static FloatBuffer BG_VBO = ByteBuffer.allocateDirect(8 * 2 * 4)
-			.order(ByteOrder.nativeOrder()).asFloatBuffer()
-			.put(new float[]{
-					-1.0f, -1.0f, 0.0f, 0.0f,
-					1.0f, -1.0f, 1.0f, 0.0f,
-					-1.0f, 1.0f, 0.0f, 1.0f,
-					1.0f, 1.0f, 1.0f, 1.0f
-			});
 	private static final int[] EMPTY_ARRAY = {};
+	private static final short[] EMPTY_DEPTH = {};
+	/** Vertices projected further than this many pixels from the origin are not rasterized. */
+	private static final int GUARD_BAND = 8191;
+	/** Size of the ARGB strip an RGB565 color buffer is presented through. */
+	private static final int PRESENT_PIXELS = 4096;
 	private static Render instance;
-	private EGLDisplay eglDisplay;
-	private EGLSurface eglWindowSurface;
-	private EGLConfig eglConfig;
-	private EGLContext eglContext;
-	private final int[] bgTextureId = new int[]{-1};
-	private final float[] MVP_TMP = new float[16];
 
 	private Graphics graphics;
-	private Bitmap mBitmapBuffer;
 	private int width, height;
-	private final Rect gClip = new Rect();
-	private final Rect clip = new Rect();
-	private final boolean skipSprites = Boolean.getBoolean("micro3d.v3.skipSprites");
-	private boolean backCopied;
-	private final LinkedList<RenderNode> stack = new LinkedList<>();
-	private int flushStep;
+	private int[] colorBuffer = EMPTY_ARRAY;
+	// color buffer when Rasterizer.RGB565 is set, colorBuffer is then unused
+	private short[] colorBuffer565 = EMPTY_DEPTH;
+	// rows of colorBuffer565 widened to ARGB for drawRGB
+	private int[] presentBuffer = EMPTY_ARRAY;
+	private short[] depthBuffer = EMPTY_DEPTH;
+	private int gClipLeft, gClipTop, gClipRight, gClipBottom;
+	private int clipLeft, clipTop, clipRight, clipBottom;
+	private final Rasterizer rasterizer = new Rasterizer();
+	private final Material material = new Material();
+	private final boolean skipSprites = Utils.getBoolean("micro3d.v3.skipSprites");
+	// adds a highlight of the light to lit specular polygons when no sphere map is set
+	private final boolean specular = Utils.getBoolean("micro3d.v3.specular");
+	private final Vector stack = new Vector();
+	private RenderNode[] nodes = new RenderNode[16];
 	private Texture[] textures;
-	private final boolean postCopy2D = !Boolean.getBoolean("micro3d.v3.render.no-mix2D3D");
-	private final boolean preCopy2D = !Boolean.getBoolean("micro3d.v3.render.background.ignore");
+	private final boolean postCopy2D = !Utils.getBoolean("micro3d.v3.render.no-mix2D3D");
 	private int textureIdx;
 
-	/**
-	 * Utility method for debugging OpenGL calls.
-	 * <p>
-	 * If the operation is not successful, the check throws an error.
-	 *
-	 * @param glOperation - Name of the OpenGL call to check.
-	 */
-	static void checkGlError(String glOperation) {
-		int error = glGetError();
-		if (error != GL_NO_ERROR) {
-			String s = GLU.gluErrorString(error);
-			Log.e(TAG, glOperation + ": glError " + s);
-			throw new RuntimeException(glOperation + ": glError " + s);
-		}
-	}
+	private static final int MODE_SCANLINE = 0;
+	private static final int MODE_TILED = 1;
+	private static final int MODE_ZSORT = 2;
+	private static final int MODE_SBUFFER = 3;
+	private static final int MODE_DEFERRED = 4;
+	private int mode;
+	private final TriangleQueue queue = new TriangleQueue();
+	private final OcclusionBuffer occlusion = new OcclusionBuffer();
+	// screen bounds of the current figure
+	private int boundsLeft, boundsTop, boundsRight, boundsBottom;
+	// blended triangles, drawn after all opaque ones of a flush
+	private final TriangleQueue blendQueue = new TriangleQueue();
+	private TileRenderer tileRenderer;
+	private OrderingTable orderingTable;
+	private SpanBuffer spanBuffer;
+	private VisibilityBuffer visibilityBuffer;
+
+	// projection of the current layout
+	private final int[] projection = new int[Utils.PROJ_SIZE];
+	private boolean parallel;
+
+	// light of the current effect, view space
+	private int lightX, lightY, lightZ;
+	private int lightDir, lightAmb;
+	// sphere coordinates of the current sphere map, see Texture.getSphereCoords
+	private int[] sphereCoords;
+	// highlight sphere map and the light it was built for
+	private static final int HIGHLIGHT_SIZE = 64;
+	private Texture highlight;
+	private int highlightX, highlightY, highlightZ, highlightDir;
+
+	// projected vertices of the current figure and the triangle being drawn
+	private int[] screenVertices = EMPTY_ARRAY;
+	private int[] viewVertices = EMPTY_ARRAY;
+	private int[] outcodes = EMPTY_ARRAY;
+	// vertices used by the faces of the current figure that may be seen
+	private boolean[] vertexUsed = new boolean[0];
+	private boolean[] faceVisible = new boolean[0];
+	private final LineQueue lineQueue = new LineQueue();
+	private final int[] lineSegment = new int[6];
+	// planes of the view volume every bone sphere of the current figure is outside of
+	private int[] boneCodes = EMPTY_ARRAY;
+	// largest scale of the layout axes, set by cullBounds
+	private double layoutScale;
+	private final int[] tri = new int[Rasterizer.VERTEX_SIZE * 4];
+	// screen corners of the current point sprite
+	private final int[] spriteQuad = new int[8];
+
+	// vertex outcodes, the side bits are set outside the planes through the eye and the clip rectangle
+	private static final int OUT_LEFT = 1;
+	private static final int OUT_RIGHT = 2;
+	private static final int OUT_TOP = 4;
+	private static final int OUT_BOTTOM = 8;
+	private static final int OUT_NEAR = 16;
+	private static final int OUT_FAR = 32;
+	// projected outside the guard band
+	private static final int OUT_GUARD = 64;
+	private static final int OUT_CLIP = OUT_NEAR | OUT_FAR | OUT_GUARD;
+	// shared by all vertices of a polygon that is entirely outside, the guard band is not a bound
+	private static final int OUT_REJECT = ~OUT_GUARD;
+	// view space depth range of the current projection
+	private int clipNear, clipFar;
+	// polygons being clipped: a rasterizer vertex followed by its view space position
+	private static final int CLIP_X = Rasterizer.VERTEX_SIZE;
+	private static final int CLIP_Y = CLIP_X + 1;
+	private static final int CLIP_Z = CLIP_X + 2;
+	private static final int CLIP_SIZE = CLIP_X + 3;
+	// a quad gains at most one vertex per clip plane
+	private static final int CLIP_MAX = 10;
+	private int[] clipPolygon = new int[CLIP_SIZE * CLIP_MAX];
+	private int[] clipSpare = new int[CLIP_SIZE * CLIP_MAX];
+	// signed distances of the clipPolygon vertices to the current clip plane
+	private final long[] clipDistance = new long[CLIP_MAX];
 
 	synchronized static Render getRender() {
 		if (instance == null) {
@@ -108,1051 +134,1448 @@ class Render {
 		return instance;
 	}
 
-	private void init() {
-		EGL10 egl = (EGL10) EGLContext.getEGL();
-		this.eglDisplay = egl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-
-		int[] version = new int[2];
-		egl.eglInitialize(eglDisplay, version);
-
-		int EGL_OPENGL_ES2_BIT = 0x0004;
-		int[] num_config = new int[1];
-		int[] attribs = {
-				EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
-				EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
-				EGL10.EGL_RED_SIZE, 8,
-				EGL10.EGL_GREEN_SIZE, 8,
-				EGL10.EGL_BLUE_SIZE, 8,
-				EGL10.EGL_ALPHA_SIZE, 8,
-				EGL10.EGL_DEPTH_SIZE, 16,
-				EGL10.EGL_STENCIL_SIZE, EGL10.EGL_DONT_CARE,
-				EGL10.EGL_NONE
-		};
-		EGLConfig[] eglConfigs = new EGLConfig[1];
-		egl.eglChooseConfig(eglDisplay, attribs, eglConfigs, 1, num_config);
-		this.eglConfig = eglConfigs[0];
-
-		int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
-		int[] attrib_list = {
-				EGL_CONTEXT_CLIENT_VERSION, 2,
-				EGL10.EGL_NONE
-		};
-		this.eglContext = egl.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
-	}
-
 	synchronized void bind(Graphics graphics) {
 		this.graphics = graphics;
-		Canvas canvas = graphics.getCanvas();
-		int width = canvas.getWidth();
-		int height = canvas.getHeight();
-		if (eglContext == null) init();
-		mBitmapBuffer = graphics.getBitmap();
-		EGL10 egl = (EGL10) EGLContext.getEGL();
-		if (this.width != width || this.height != height) {
-
-			if (this.eglWindowSurface != null) {
-				releaseEglContext();
-				egl.eglDestroySurface(this.eglDisplay, this.eglWindowSurface);
+		String mode = System.getProperty("micro3d.v3.render.mode");
+		if ("tiled".equals(mode)) {
+			this.mode = MODE_TILED;
+			int threads = Math.max(Utils.getInt("micro3d.v3.render.threads", 1), 1);
+			if (tileRenderer != null && tileRenderer.getThreads() != threads) {
+				tileRenderer.shutdown();
+				tileRenderer = null;
+			}
+			if (tileRenderer == null) {
+				tileRenderer = new TileRenderer(threads);
+			}
+		} else if ("zsort".equals(mode)) {
+			this.mode = MODE_ZSORT;
+			if (orderingTable == null) {
+				orderingTable = new OrderingTable();
+			}
+		} else if ("sbuffer".equals(mode)) {
+			this.mode = MODE_SBUFFER;
+			if (spanBuffer == null) {
+				spanBuffer = new SpanBuffer();
+			}
+		} else if ("deferred".equals(mode)) {
+			this.mode = MODE_DEFERRED;
+			if (visibilityBuffer == null) {
+				visibilityBuffer = new VisibilityBuffer();
 			}
-
-			int[] surface_attribs = {
-					EGL10.EGL_WIDTH, width,
-					EGL10.EGL_HEIGHT, height,
-					EGL10.EGL_NONE};
-			this.eglWindowSurface = egl.eglCreatePbufferSurface(eglDisplay, eglConfig, surface_attribs);
-			egl.eglMakeCurrent(eglDisplay, eglWindowSurface, eglWindowSurface, eglContext);
-
-			glViewport(0, 0, width, height);
-			Program.create();
-			this.width = width;
-			this.height = height;
-			glClearColor(0, 0, 0, 1);
-			glClear(GL_COLOR_BUFFER_BIT);
-		}
-		egl.eglMakeCurrent(eglDisplay, eglWindowSurface, eglWindowSurface, eglContext);
-		Rect clip = this.clip;
-		canvas.getClipBounds(clip);
-		int l = clip.left;
-		int t = clip.top;
-		int r = clip.right;
-		int b = clip.bottom;
-		gClip.set(l, t, r, b);
-		if (l == 0 && t == 0 && r == this.width && b == this.height) {
-			glDisable(GL_SCISSOR_TEST);
 		} else {
-			glEnable(GL_SCISSOR_TEST);
-			glScissor(l, t, r - l, b - t);
+			this.mode = MODE_SCANLINE;
 		}
-		glClear(GL_DEPTH_BUFFER_BIT);
-		backCopied = false;
-		egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-	}
-
-	private static void applyBlending(int blendMode) {
-		switch (blendMode) {
-			case Model.Polygon.BLEND_HALF:
-				glEnable(GL_BLEND);
-				glBlendColor(0.5f, 0.5f, 0.5f, 1.0f);
-				glBlendEquation(GL_FUNC_ADD);
-				glBlendFunc(GL_CONSTANT_COLOR, GL_CONSTANT_COLOR);
-				break;
-			case Model.Polygon.BLEND_ADD:
-				glEnable(GL_BLEND);
-				glBlendEquation(GL_FUNC_ADD);
-				glBlendFunc(GL_ONE, GL_ONE);
-				break;
-			case Model.Polygon.BLEND_SUB:
-				glEnable(GL_BLEND);
-				glBlendEquation(GL_FUNC_REVERSE_SUBTRACT);
-				glBlendFuncSeparate(GL_ONE, GL_ONE, GL_ZERO, GL_ONE);
-				break;
-			default:
-				glDisable(GL_BLEND);
+		if (this.mode != MODE_TILED && tileRenderer != null) {
+			// no other mode needs the workers, let them end
+			tileRenderer.shutdown();
+			tileRenderer = null;
+		}
+		int l = graphics.getClipX();
+		int t = graphics.getClipY();
+		int r = l + graphics.getClipWidth();
+		int b = t + graphics.getClipHeight();
+		if (l < 0) l = 0;
+		if (t < 0) t = 0;
+		if (r < l) r = l;
+		if (b < t) b = t;
+		if (width != r || height != b) {
+			width = r;
+			height = b;
+			if (Rasterizer.RGB565) {
+				colorBuffer565 = new short[r * b];
+			} else {
+				colorBuffer = new int[r * b];
+			}
+		}
+		if (!usesDepthBuffer()) {
+			depthBuffer = EMPTY_DEPTH;
+		} else if (depthBuffer.length != r * b) {
+			depthBuffer = new short[r * b];
+		}
+		if (Rasterizer.RGB565) {
+			rasterizer.setTarget(colorBuffer565, usesDepthBuffer() ? depthBuffer : null, r, 0, 0);
+		} else {
+			rasterizer.setTarget(colorBuffer, usesDepthBuffer() ? depthBuffer : null, r, 0, 0);
+		}
+		queue.clear();
+		blendQueue.clear();
+		lineQueue.clear();
+		gClipLeft = l;
+		gClipTop = t;
+		gClipRight = r;
+		gClipBottom = b;
+		clipLeft = l;
+		clipTop = t;
+		clipRight = r;
+		clipBottom = b;
+		rasterizer.setClip(l, t, r, b);
+		material.setClip(l, t, r, b);
+		if (this.mode == MODE_SCANLINE) {
+			occlusion.setTarget(depthBuffer, r, l, t, r, b);
 		}
-	}
 
-	private void copy2d(boolean preProcess) {
-		if (!glIsTexture(bgTextureId[0])) {
-			glGenTextures(1, bgTextureId, 0);
-			glActiveTexture(GL_TEXTURE1);
-			glBindTexture(GL_TEXTURE_2D, bgTextureId[0]);
-			boolean filter = Boolean.getBoolean("micro3d.v3.background.filter");
-			glTexParameteri(GLES20.GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filter ? GL_LINEAR : GL_NEAREST);
-			glTexParameteri(GLES20.GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filter ? GL_LINEAR : GL_NEAREST);
-			glTexParameteri(GLES20.GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-			glTexParameteri(GLES20.GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		// untouched pixels stay transparent, so 2D content shows through on release
+		if (Rasterizer.RGB565) {
+			short[] colors = colorBuffer565;
+			for (int y = t; y < b; y++) {
+				for (int i = y * width + l, end = y * width + r; i < end; i++) {
+					colors[i] = 0;
+				}
+			}
 		} else {
-			glActiveTexture(GL_TEXTURE1);
-			glBindTexture(GL_TEXTURE_2D, bgTextureId[0]);
+			int[] colors = colorBuffer;
+			for (int y = t; y < b; y++) {
+				for (int i = y * width + l, end = y * width + r; i < end; i++) {
+					colors[i] = 0;
+				}
+			}
+		}
+		if (usesDepthBuffer()) {
+			clearDepth();
 		}
-		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, mBitmapBuffer, 0);
-		checkGlError("texImage2D");
+	}
 
-		final Program.Simple program = Program.simple;
-		program.use();
+	private boolean usesDepthBuffer() {
+		return mode == MODE_SCANLINE || mode == MODE_DEFERRED;
+	}
 
-		BG_VBO.rewind();
-		glVertexAttribPointer(program.aPosition, 2, GL_FLOAT, false, 4 * 4, BG_VBO);
-		glEnableVertexAttribArray(program.aPosition);
+	/**
+	 * Finishes the triangles of the current flush.
+	 */
+	private void resolve() {
+		try {
+			blendQueue.reverseBatches();
+			// with a depth buffer the blended batches are drawn after the opaque lines
+			if (!usesDepthBuffer()) {
+				queue.append(blendQueue);
+			}
+			switch (mode) {
+				case MODE_TILED:
+					tileRenderer.render(queue, colorBuffer, colorBuffer565, width,
+							gClipLeft, gClipTop, gClipRight, gClipBottom);
+					break;
+				case MODE_ZSORT:
+					orderingTable.render(queue, rasterizer);
+					break;
+				case MODE_SBUFFER:
+					spanBuffer.render(queue, rasterizer, gClipTop, gClipBottom);
+					break;
+				case MODE_DEFERRED:
+					visibilityBuffer.render(queue, rasterizer, depthBuffer, width,
+							gClipLeft, gClipTop, gClipRight, gClipBottom);
+					break;
+				default:
+					break;
+			}
+			drawLines(false);
+			if (usesDepthBuffer()) {
+				drawBlended();
+			}
+			drawLines(true);
+		} finally {
+			queue.clear();
+			blendQueue.clear();
+			lineQueue.clear();
+			if (usesDepthBuffer()) {
+				clearDepth();
+				occlusion.clear();
+			}
+		}
+	}
 
-		// координаты текстур
-		BG_VBO.position(2);
-		glVertexAttribPointer(program.aTexture, 2, GL_FLOAT, false, 4 * 4, BG_VBO);
-		glEnableVertexAttribArray(program.aTexture);
+	/**
+	 * @param blended draw the blended lines instead of the opaque ones
+	 */
+	private void drawLines(boolean blended) {
+		if (lineQueue.isEmpty()) return;
+		rasterizer.setClip(clipLeft, clipTop, clipRight, clipBottom);
+		lineQueue.render(rasterizer, blended);
+	}
 
-		// юнит текстуры
-		glUniform1i(program.uTextureUnit, 1);
+	/**
+	 * Draws the blended batches over the opaque geometry in submission order.
+	 */
+	private void drawBlended() {
+		TriangleQueue q = blendQueue;
+		int[] v = q.vertices;
+		int[] materialIndex = q.materialIndex;
+		Material[] materials = q.materials;
+		Material current = null;
+		for (int t = 0, size = q.size; t < size; t++) {
+			Material m = materials[materialIndex[t]];
+			if (m != current) {
+				current = m;
+				rasterizer.setMaterial(m);
+				rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+			}
+			int o = t * TriangleQueue.TRIANGLE_SIZE;
+			int o1 = o + Rasterizer.VERTEX_SIZE;
+			if (v[o1 + Rasterizer.VERTEX_SIZE + Rasterizer.Z] == TriangleQueue.RECT) {
+				rasterizer.fillRect(v[o + Rasterizer.X], v[o + Rasterizer.Y], v[o1 + Rasterizer.X], v[o1 + Rasterizer.Y],
+						v[o + Rasterizer.Z], v[o + Rasterizer.U], v[o + Rasterizer.V], v[o1 + Rasterizer.U], v[o1 + Rasterizer.V]);
+				continue;
+			}
+			rasterizer.fillTriangle(v, o, o1, o1 + Rasterizer.VERTEX_SIZE);
+		}
+		rasterizer.setClip(clipLeft, clipTop, clipRight, clipBottom);
+	}
 
-		if (preProcess) {
-			glDisable(GL_BLEND);
+	private void applyMaterial() {
+		if (!material.depthWrite) {
+			blendQueue.setMaterial(material);
+		} else if (mode == MODE_SCANLINE) {
+			rasterizer.setMaterial(material);
 		} else {
-			glEnable(GL_BLEND);
-			glBlendEquation(GL_FUNC_ADD);
-			glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-		}
-		glDisable(GL_DEPTH_TEST);
-		glDepthMask(false);
-		glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
-		glDisableVertexAttribArray(program.aPosition);
-		glDisableVertexAttribArray(program.aTexture);
-		checkGlError("copy2d");
-		if (preProcess) {
-			if (postCopy2D) {
-				mBitmapBuffer.setHasAlpha(true);
-				graphics.getCanvas().drawColor(0, PorterDuff.Mode.SRC);
-			}
-			backCopied = true;
+			queue.setMaterial(material);
+		}
+	}
+
+	private void drawTriangle(int[] v, int a, int b, int c) {
+		if (!material.depthWrite) {
+			blendQueue.add(v, a, b, c);
+		} else if (mode == MODE_SCANLINE) {
+			rasterizer.fillTriangle(v, a, b, c);
 		} else {
-			mBitmapBuffer.setHasAlpha(false);
+			queue.add(v, a, b, c);
 		}
 	}
 
-	@Override
-	protected synchronized void finalize() throws Throwable {
-		try {
-			// Destroy EGL
-			EGL10 egl = (EGL10) EGLContext.getEGL();
-			egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-			if (eglWindowSurface != null)
-				egl.eglDestroySurface(eglDisplay, eglWindowSurface);
-			egl.eglDestroyContext(eglDisplay, eglContext);
-			egl.eglTerminate(eglDisplay);
-		} finally {
-			super.finalize();
+	private void clearDepth() {
+		short[] depth = depthBuffer;
+		for (int y = gClipTop; y < gClipBottom; y++) {
+			for (int i = y * width + gClipLeft, end = y * width + gClipRight; i < end; i++) {
+				depth[i] = Rasterizer.DEPTH_FAR;
+			}
 		}
 	}
 
 	void renderFigure(Model model, int x, int y, FigureLayout layout, Texture[] textures,
-					  Effect3D effect, FloatBuffer vertices, FloatBuffer normals) {
-		if (!effect.isTransparency && flushStep == 2) return;
-
+					  Effect3D effect, short[] vertices, byte[] normals, int[] faceNormals,
+					  int[] bounds, int pattern) {
 		if (!model.hasPolyT && !model.hasPolyC)
 			return;
 
-		glEnable(GL_DEPTH_TEST);
-		glDepthMask(flushStep == 1);
-		float[] mvm = getMvMatrix(layout);
-		float[] pm = getProjectionMatrix(layout, x, y);
-		float[] mvp = MVP_TMP;
-		Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-		int[] bufHandles = new int[3];
-		glGenBuffers(3, bufHandles, 0);
-		vertices.rewind();
-		try {
-			glBindBuffer(GL_ARRAY_BUFFER, bufHandles[0]);
-			glBufferData(GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices, GL_STREAM_DRAW);
-			ByteBuffer tcBuf = model.texCoordArray;
-			tcBuf.rewind();
-			glBindBuffer(GL_ARRAY_BUFFER, bufHandles[1]);
-			glBufferData(GL_ARRAY_BUFFER, tcBuf.capacity(), tcBuf, GL_STREAM_DRAW);
-
-			if (normals != null) {
-				normals.rewind();
-				glBindBuffer(GL_ARRAY_BUFFER, bufHandles[2]);
-				glBufferData(GL_ARRAY_BUFFER, normals.capacity() * 4, normals, GL_STREAM_DRAW);
+		setProjection(layout, x, y);
+		if (cullBounds(layout.affine, bounds)) {
+			return;
+		}
+		boolean occlusionTest = mode == MODE_SCANLINE;
+		if (occlusionTest && isOccluded(layout.affine, bounds)) {
+			return;
+		}
+		setLight(effect);
+		Texture sphere = setSphere(effect, effect.isLighting);
+		cullFaces(model, layout.affine, vertices, faceNormals, pattern,
+				textures != null && textures.length != 0);
+		projectVertices(layout.affine, vertices, normals, effect.isLighting);
+
+		int[] screen = screenVertices;
+		int[] codes = outcodes;
+		int[] tri = this.tri;
+
+		if (model.hasPolyT && textures != null && textures.length != 0) {
+			Model.Polygon[] polygons = model.polygonsT;
+			for (int i = 0; i < polygons.length; i++) {
+				Model.Polygon p = polygons[i];
+				int pp = p.pattern;
+				if ((pp & pattern) != pp) continue;
+				boolean blend = effect.isTransparency && p.blendMode != 0;
+				Texture tex = p.face >= textures.length ? null : textures[p.face];
+				if (tex == null) continue;
+
+				byte[] tc = p.texCoords;
+				boolean lit = effect.isLighting && normals != null && tc[2] != 0;
+				material.set(tex, 0, blend ? p.blendMode : 0, tc[4] != 0, !blend);
+				material.setShading(lit, effect, lit && tc[3] != 0 ? sphere : null);
+				applyMaterial();
+				drawPolygon(screen, codes, tri, p, tc, true, p.doubleFace == 0);
 			}
-			if (model.hasPolyT) {
-				final Program.Tex program = Program.tex;
-				program.use();
-				program.setToonShading(effect);
-
-				glBindBuffer(GL_ARRAY_BUFFER, bufHandles[0]);
-				glEnableVertexAttribArray(program.aPosition);
-				glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, 0);
-
-				glBindBuffer(GL_ARRAY_BUFFER, bufHandles[1]);
-				glEnableVertexAttribArray(program.aColorData);
-				glVertexAttribPointer(program.aColorData, 2, GL_UNSIGNED_BYTE, false, 5, 0);
-				glEnableVertexAttribArray(program.aMaterial);
-				glVertexAttribPointer(program.aMaterial, 3, GL_UNSIGNED_BYTE, false, 5, 2);
-
-				if (normals != null) {
-					glBindBuffer(GL_ARRAY_BUFFER, bufHandles[2]);
-					glEnableVertexAttribArray(program.aNormal);
-					glVertexAttribPointer(program.aNormal, 3, GL_FLOAT, false, 3 * 4, 0);
-				} else {
-					glDisableVertexAttribArray(program.aNormal);
-				}
+		}
 
-				glUniform1i(program.uIsPrimitive, GL_FALSE);
-				program.bindMatrices(mvp, mvm);
-				program.setLight(effect.isLighting ? effect.light : null);
-				if (effect.isLighting && effect.mTexture != null) {
-					glActiveTexture(GL_TEXTURE2);
-					glBindTexture(GL_TEXTURE_2D, effect.mTexture.getId());
-					glUniform1i(program.uSphereUnit, 2);
-					glUniform2f(program.uSphereSize, 64.0f / effect.mTexture.width, 64.0f / effect.mTexture.height);
-				} else {
-					glUniform2f(program.uSphereSize, -1, -1);
-				}
-				// Draw triangles
-				renderModel(model, textures, effect);
-				glDisableVertexAttribArray(program.aPosition);
-				glDisableVertexAttribArray(program.aColorData);
-				glDisableVertexAttribArray(program.aMaterial);
-				glDisableVertexAttribArray(program.aNormal);
-				glBindBuffer(GL_ARRAY_BUFFER, 0);
+		if (model.hasPolyC) {
+			Model.Polygon[] polygons = model.polygonsC;
+			for (int i = 0; i < polygons.length; i++) {
+				Model.Polygon p = polygons[i];
+				int pp = p.pattern;
+				if ((pp & pattern) != pp) continue;
+				boolean blend = effect.isTransparency && p.blendMode != 0;
+
+				byte[] tc = p.texCoords;
+				int color = (tc[0] & 0xFF) << 16 | (tc[1] & 0xFF) << 8 | tc[2] & 0xFF;
+				boolean lit = effect.isLighting && normals != null && tc[3] != 0;
+				material.set(null, color, blend ? p.blendMode : 0, false, !blend);
+				material.setShading(lit, effect, lit && tc[4] != 0 ? sphere : null);
+				applyMaterial();
+				drawPolygon(screen, codes, tri, p, tc, false, p.doubleFace == 0);
+			}
+		}
+		if (occlusionTest) {
+			occlusion.invalidate(boundsLeft, boundsTop, boundsRight, boundsBottom);
+		}
+	}
+
+	/**
+	 * Projects a view space box around the bounding sphere of the figure and tests it
+	 * against the occlusion buffer. Sets the figure bounds, or the whole clip if the box
+	 * can not be projected.
+	 */
+	private boolean isOccluded(AffineTrans a, int[] bounds) {
+		boundsLeft = clipLeft;
+		boundsTop = clipTop;
+		boundsRight = clipRight;
+		boundsBottom = clipBottom;
+		int o = bounds.length - 4;
+		if (bounds[o + 3] < 0) return false;
+		int bx = bounds[o];
+		int by = bounds[o + 1];
+		int bz = bounds[o + 2];
+		int cx = ((a.m00 * bx + a.m01 * by + a.m02 * bz) >> 12) + a.m03;
+		int cy = ((a.m10 * bx + a.m11 * by + a.m12 * bz) >> 12) + a.m13;
+		int cz = ((a.m20 * bx + a.m21 * by + a.m22 * bz) >> 12) + a.m23;
+		int radius = (int) (bounds[o + 3] * layoutScale) + 1;
+
+		int[] v = tri;
+		int l = Integer.MAX_VALUE, t = Integer.MAX_VALUE, near = Rasterizer.DEPTH_FAR;
+		int r = Integer.MIN_VALUE, b = Integer.MIN_VALUE;
+		for (int i = 0; i < 8; i++) {
+			if (!project((i & 1) == 0 ? cx - radius : cx + radius,
+					(i & 2) == 0 ? cy - radius : cy + radius,
+					(i & 4) == 0 ? cz - radius : cz + radius,
+					v, 0)) {
+				return false;
 			}
+			int sx = v[Rasterizer.X];
+			int sy = v[Rasterizer.Y];
+			if (sx >> 16 < l) l = sx >> 16;
+			if (sy >> 16 < t) t = sy >> 16;
+			if ((sx >> 16) + 1 > r) r = (sx >> 16) + 1;
+			if ((sy >> 16) + 1 > b) b = (sy >> 16) + 1;
+			if (v[Rasterizer.Z] < near) near = v[Rasterizer.Z];
+		}
+		boundsLeft = l;
+		boundsTop = t;
+		boundsRight = r;
+		boundsBottom = b;
+		return occlusion.isHidden(Math.max(l, clipLeft), Math.max(t, clipTop),
+				Math.min(r, clipRight), Math.min(b, clipBottom), near);
+	}
 
-			if (model.hasPolyC) {
-				final Program.Color program = Program.color;
-				program.use();
-				glUniform1i(program.uIsPrimitive, GL_FALSE);
-
-				glBindBuffer(GL_ARRAY_BUFFER, bufHandles[0]);
-				glEnableVertexAttribArray(program.aPosition);
-				glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, 0);
-
-				glBindBuffer(GL_ARRAY_BUFFER, bufHandles[1]);
-				glVertexAttribPointer(program.aColorData, 3, GL_UNSIGNED_BYTE, false, 5, 0);
-				glEnableVertexAttribArray(program.aColorData);
-				glEnableVertexAttribArray(program.aMaterial);
-				glVertexAttribPointer(program.aMaterial, 2, GL_UNSIGNED_BYTE, false, 5, 3);
-
-				if (normals != null) {
-					glBindBuffer(GL_ARRAY_BUFFER, bufHandles[2]);
-					glVertexAttribPointer(program.aNormal, 3, GL_FLOAT, false, 3 * 4, 0);
-					glEnableVertexAttribArray(program.aNormal);
-				} else {
-					glDisableVertexAttribArray(program.aNormal);
+	/**
+	 * Draws a triangle or a quad, the vertices of a quad are copied once for both halves.
+	 */
+	private void drawPolygon(int[] screen, int[] codes, int[] tri, Model.Polygon p,
+							 byte[] tc, boolean textured, boolean cull) {
+		int[] indices = p.indices;
+		int count = indices.length;
+		boolean[] visible = faceVisible;
+		boolean loaded = false;
+		if (count == 4 && mode == MODE_SCANLINE && material.depthWrite
+				&& visible[p.firstFace] && visible[p.firstFace + 1]) {
+			int ca = codes[indices[0]];
+			int cb = codes[indices[1]];
+			int cc = codes[indices[2]];
+			int cd = codes[indices[3]];
+			if ((ca & cb & cc & cd & OUT_REJECT) != 0) return;
+			if (((ca | cb | cc | cd) & OUT_CLIP) == 0) {
+				for (int k = 0, o = 0; k < 4; k++, o += Rasterizer.VERTEX_SIZE) {
+					copyVertex(screen, indices[k], tri, o);
+					if (textured) {
+						tri[o + Rasterizer.U] = tc[k * 5] & 0xFF;
+						tri[o + Rasterizer.V] = tc[k * 5 + 1] & 0xFF;
+					}
 				}
-				program.bindMatrices(mvp, mvm);
-				program.disableUniformColor();
-				program.setLight(effect.isLighting ? effect.light : null);
-				if (effect.isLighting && effect.mTexture != null) {
-					glActiveTexture(GL_TEXTURE2);
-					glBindTexture(GL_TEXTURE_2D, effect.mTexture.getId());
-					glUniform1i(program.uSphereUnit, 2);
-					glUniform2f(program.uSphereSize, 64.0f / effect.mTexture.width, 64.0f / effect.mTexture.height);
-				} else {
-					glUniform2f(program.uSphereSize, -1, -1);
+				loaded = true;
+				// a convex quad has both halves facing the same way
+				if (!cull || isFrontFace(tri, 0, Rasterizer.VERTEX_SIZE, Rasterizer.VERTEX_SIZE * 2)) {
+					if (rasterizer.fillQuad(tri, 0, Rasterizer.VERTEX_SIZE, Rasterizer.VERTEX_SIZE * 2,
+							Rasterizer.VERTEX_SIZE * 3)) {
+						return;
+					}
 				}
-				program.setToonShading(effect);
-				renderModel(model, effect.isTransparency);
-				glDisableVertexAttribArray(program.aPosition);
-				glDisableVertexAttribArray(program.aColorData);
-				glDisableVertexAttribArray(program.aMaterial);
-				glDisableVertexAttribArray(program.aNormal);
 			}
-		} finally {
-			glBindBuffer(GL_ARRAY_BUFFER, 0);
-			glDeleteBuffers(3, bufHandles, 0);
+		}
+		for (int t = 0, face = p.firstFace; t < count - 2; t++, face++) {
+			if (!visible[face]) continue;
+			// corners of the triangle within the polygon
+			int ka = t << 1;
+			int kc = t + 2;
+			int a = indices[ka];
+			int b = indices[1];
+			int c = indices[kc];
+			int ca = codes[a];
+			int cb = codes[b];
+			int cc = codes[c];
+			if ((ca & cb & cc & OUT_REJECT) != 0) continue;
+			if (((ca | cb | cc) & OUT_CLIP) != 0) {
+				int[] v = clipPolygon;
+				loadClipVertex(v, 0, a);
+				loadClipVertex(v, CLIP_SIZE, b);
+				loadClipVertex(v, CLIP_SIZE * 2, c);
+				if (textured) {
+					v[Rasterizer.U] = tc[ka * 5] & 0xFF;
+					v[Rasterizer.V] = tc[ka * 5 + 1] & 0xFF;
+					v[CLIP_SIZE + Rasterizer.U] = tc[5] & 0xFF;
+					v[CLIP_SIZE + Rasterizer.V] = tc[6] & 0xFF;
+					v[CLIP_SIZE * 2 + Rasterizer.U] = tc[kc * 5] & 0xFF;
+					v[CLIP_SIZE * 2 + Rasterizer.V] = tc[kc * 5 + 1] & 0xFF;
+				}
+				drawClipped(3, cull);
+				continue;
+			}
+			if (!loaded) {
+				for (int k = 0, o = 0; k < count; k++, o += Rasterizer.VERTEX_SIZE) {
+					copyVertex(screen, indices[k], tri, o);
+					if (textured) {
+						tri[o + Rasterizer.U] = tc[k * 5] & 0xFF;
+						tri[o + Rasterizer.V] = tc[k * 5 + 1] & 0xFF;
+					}
+				}
+				loaded = true;
+			}
+			int oa = ka * Rasterizer.VERTEX_SIZE;
+			int oc = kc * Rasterizer.VERTEX_SIZE;
+			if (cull && !isFrontFace(tri, oa, Rasterizer.VERTEX_SIZE, oc)) {
+				continue;
+			}
+			drawTriangle(tri, oa, Rasterizer.VERTEX_SIZE, oc);
 		}
 	}
 
-	private float[] getProjectionMatrix(FigureLayout layout, int x, int y) {
-		float[] pm = new float[16];
-		switch (layout.settingIndex) {
-			case COMMAND_PARALLEL_SCALE:
-				Utils.parallelScale(pm, x, y, layout, width, height);
-				break;
-			case COMMAND_PARALLEL_SIZE:
-				Utils.parallelWH(pm, x, y, layout, width, height);
-				break;
-			case COMMAND_PERSPECTIVE_FOV:
-				Utils.perspectiveFov(pm, x, y, layout, width, height);
-				break;
-			case COMMAND_PERSPECTIVE_WH:
-				Utils.perspectiveWH(pm, x, y, layout, width, height);
+	private static void copyVertex(int[] screen, int index, int[] dst, int o) {
+		System.arraycopy(screen, index * Rasterizer.VERTEX_SIZE, dst, o, Rasterizer.VERTEX_SIZE);
+	}
+
+	private void loadClipVertex(int[] dst, int o, int index) {
+		System.arraycopy(screenVertices, index * Rasterizer.VERTEX_SIZE, dst, o, Rasterizer.VERTEX_SIZE);
+		System.arraycopy(viewVertices, index * 3, dst, o + CLIP_X, 3);
+	}
+
+	/**
+	 * Clips the polygon in clipPolygon to the depth range in view space,
+	 * then projects it and draws it as a triangle fan.
+	 * Polygons still reaching past the guard band are clipped to it as well.
+	 */
+	private void drawClipped(int n, boolean cull) {
+		n = clipDepth(n, clipNear, 1);
+		n = clipDepth(n, clipFar, -1);
+		if (n < 3) return;
+		int[] v = clipPolygon;
+		for (int k = 0, o = 0; k < n; k++, o += CLIP_SIZE) {
+			if (!project(v[o + CLIP_X], v[o + CLIP_Y], v[o + CLIP_Z], v, o)) {
+				n = clipGuard(n);
+				if (n < 3) return;
+				v = clipPolygon;
+				for (k = 0, o = 0; k < n; k++, o += CLIP_SIZE) {
+					if (!project(v[o + CLIP_X], v[o + CLIP_Y], v[o + CLIP_Z], v, o)) return;
+				}
 				break;
+			}
+		}
+		if (cull) {
+			long x0 = v[Rasterizer.X];
+			long y0 = v[Rasterizer.Y];
+			long area = 0;
+			for (int o = CLIP_SIZE; o < (n - 1) * CLIP_SIZE; o += CLIP_SIZE) {
+				area += (v[o + Rasterizer.X] - x0) * (v[o + CLIP_SIZE + Rasterizer.Y] - y0)
+						- (v[o + CLIP_SIZE + Rasterizer.X] - x0) * (v[o + Rasterizer.Y] - y0);
+			}
+			if (area <= 0) return;
+		}
+		for (int o = CLIP_SIZE; o < (n - 1) * CLIP_SIZE; o += CLIP_SIZE) {
+			drawTriangle(v, 0, o, o + CLIP_SIZE);
 		}
-		return pm;
 	}
 
-	private float[] getMvMatrix(FigureLayout layout) {
-		AffineTrans a = layout.affine;
-		float[] m = new float[16];
-		m[0] = a.m00 * TO_FLOAT; m[4] = a.m01 * TO_FLOAT; m[ 8] = a.m02 * TO_FLOAT; m[12] = a.m03;
-		m[1] = a.m10 * TO_FLOAT; m[5] = a.m11 * TO_FLOAT; m[ 9] = a.m12 * TO_FLOAT; m[13] = a.m13;
-		m[2] = a.m20 * TO_FLOAT; m[6] = a.m21 * TO_FLOAT; m[10] = a.m22 * TO_FLOAT; m[14] = a.m23;
-		m[3] =             0.0F; m[7] =             0.0F; m[11] =             0.0F; m[15] =  1.0F;
-		return m;
+	/**
+	 * Clips clipPolygon by a plane of constant view depth.
+	 *
+	 * @param side 1 to keep the part at or beyond {@code plane}, -1 to keep the part before it
+	 * @return vertex count of the clipped polygon
+	 */
+	private int clipDepth(int n, int plane, int side) {
+		int[] src = clipPolygon;
+		long[] dist = clipDistance;
+		for (int k = 0, o = CLIP_Z; k < n; k++, o += CLIP_SIZE) {
+			dist[k] = (long) (src[o] - plane) * side;
+		}
+		return clipPlane(n, true, plane);
 	}
 
-	private void renderModel(Model model, Texture[] textures, Effect3D effect) {
-		if (textures == null || textures.length == 0) return;
-		Program.Tex program = Program.tex;
-		program.enableTexUnit();
-		int[][][] meshes = model.subMeshesLengthsT;
-		int length = meshes.length;
-		int blendMode = 0;
-		int pos = 0;
-		if (flushStep == 1) {
-			if (effect.isTransparency) length = 1;
-			glDisable(GL_BLEND);
-		} else {
-			int[][] mesh = meshes[blendMode++];
-			int cnt = 0;
-			for (int[] lens : mesh) {
-				for (int len : lens) {
-					cnt += len;
+	/**
+	 * Clips clipPolygon by side planes at half the guard band. The new vertices have
+	 * integer view coordinates, the margin keeps them inside the guard band once rounded.
+	 *
+	 * @return vertex count of the clipped polygon
+	 */
+	private int clipGuard(int n) {
+		int[] pm = projection;
+		long limit = (long) (GUARD_BAND >> 1) << 16;
+		for (int side = -1; side <= 1; side += 2) {
+			for (int axis = 0; axis < 2; axis++) {
+				int[] src = clipPolygon;
+				long[] dist = clipDistance;
+				long c = pm[axis == 0 ? Utils.PROJ_CX : Utils.PROJ_CY];
+				long scale = pm[axis == 0 ? Utils.PROJ_SX : Utils.PROJ_SY];
+				// screen coordinate c + p * scale / w against side * limit, scaled by w
+				for (int k = 0, o = 0; k < n; k++, o += CLIP_SIZE) {
+					long w = parallel ? 1 : src[o + CLIP_Z];
+					dist[k] = side * ((side * limit - c) * w - src[o + CLIP_X + axis] * scale);
+				}
+				n = clipPlane(n, false, 0);
+				if (n < 3) return n;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Sutherland-Hodgman clipping of clipPolygon by the plane in clipDistance,
+	 * vertices at a negative distance are cut off.
+	 *
+	 * @param depth the plane is at view depth {@code plane}, the new vertices are put exactly on it
+	 * @return vertex count of the clipped polygon
+	 */
+	private int clipPlane(int n, boolean depth, int plane) {
+		int[] src = clipPolygon;
+		long[] dist = clipDistance;
+		int outside = 0;
+		for (int k = 0; k < n; k++) {
+			if (dist[k] < 0) outside++;
+		}
+		if (outside == 0) return n;
+		if (outside == n) return 0;
+
+		int[] dst = clipSpare;
+		int out = 0;
+		int po = (n - 1) * CLIP_SIZE;
+		long pd = dist[n - 1];
+		for (int k = 0, o = 0; k < n; k++, o += CLIP_SIZE) {
+			long d = dist[k];
+			if (d >= 0 != pd >= 0) {
+				// the edge crosses the plane, interpolated from its inside end so an edge
+				// shared by two polygons is cut at the same point in both directions
+				int from = pd >= 0 ? po : o;
+				int to = pd >= 0 ? o : po;
+				long din = pd >= 0 ? pd : d;
+				long dout = pd >= 0 ? d : pd;
+				// guard band distances may be too large to shift up
+				long t = depth ? (din << 16) / (din - dout) : (long) ((double) din * 65536 / (din - dout));
+				int q = out++ * CLIP_SIZE;
+				for (int i = Rasterizer.U; i <= Rasterizer.SV; i++) {
+					dst[q + i] = src[from + i] + (int) ((src[to + i] - src[from + i]) * t >> 16);
+				}
+				for (int i = CLIP_X; i <= CLIP_Z; i++) {
+					dst[q + i] = src[from + i] + (int) ((src[to + i] - src[from + i]) * t >> 16);
+				}
+				if (depth) {
+					dst[q + CLIP_Z] = plane;
 				}
 			}
-			pos += cnt;
+			if (d >= 0) {
+				System.arraycopy(src, o, dst, out++ * CLIP_SIZE, CLIP_SIZE);
+			}
+			po = o;
+			pd = d;
 		}
-		while (blendMode < length) {
-			int[][] texMesh = meshes[blendMode];
-			if (flushStep == 2) {
-				applyBlending(blendMode << 1);
+		clipSpare = src;
+		clipPolygon = dst;
+		return out;
+	}
+
+	/**
+	 * Classifies a view space point. With perspective the side planes pass through the eye,
+	 * so points behind it are classified too.
+	 */
+	private int outcode(int x, int y, int z) {
+		int code = z < clipNear ? OUT_NEAR : z > clipFar ? OUT_FAR : 0;
+		int[] pm = projection;
+		long px = (long) x * pm[Utils.PROJ_SX];
+		long py = (long) y * pm[Utils.PROJ_SY];
+		long cx = pm[Utils.PROJ_CX];
+		long cy = pm[Utils.PROJ_CY];
+		long w = parallel ? 1 : z;
+		if (px < (((long) clipLeft << 16) - cx) * w) code |= OUT_LEFT;
+		if (px > (((long) clipRight << 16) - cx) * w) code |= OUT_RIGHT;
+		if (py < (((long) clipTop << 16) - cy) * w) code |= OUT_TOP;
+		if (py > (((long) clipBottom << 16) - cy) * w) code |= OUT_BOTTOM;
+		return code;
+	}
+
+	private static boolean isFrontFace(int[] v, int a, int b, int c) {
+		long ax = v[a + Rasterizer.X];
+		long ay = v[a + Rasterizer.Y];
+		return (v[b + Rasterizer.X] - ax) * (v[c + Rasterizer.Y] - ay)
+				- (v[c + Rasterizer.X] - ax) * (v[b + Rasterizer.Y] - ay) > 0;
+	}
+
+	/**
+	 * Tests the bounding spheres of the figure and its bones against the view volume
+	 * and fills {@link #boneCodes}.
+	 *
+	 * @return true if the whole figure is outside
+	 */
+	private boolean cullBounds(AffineTrans a, int[] bounds) {
+		int numBones = bounds.length / 4 - 1;
+		if (boneCodes.length < numBones) {
+			boneCodes = new int[numBones];
+		}
+		double scale = Utils.getScale(a.m00, a.m01, a.m02, a.m10, a.m11, a.m12, a.m20, a.m21, a.m22);
+		layoutScale = scale;
+		if (sphereOutcode(a, bounds, numBones * 4, scale) != 0) {
+			return true;
+		}
+		int[] codes = boneCodes;
+		for (int i = 0; i < numBones; i++) {
+			codes[i] = sphereOutcode(a, bounds, i * 4, scale);
+		}
+		return false;
+	}
+
+	/**
+	 * Same as {@link #outcode} for a sphere, a plane is set only if the whole sphere is outside.
+	 *
+	 * @param scale largest scale of the layout axes
+	 */
+	private int sphereOutcode(AffineTrans a, int[] bounds, int o, double scale) {
+		int radius = bounds[o + 3];
+		if (radius < 0) return 0;
+		int bx = bounds[o];
+		int by = bounds[o + 1];
+		int bz = bounds[o + 2];
+		int x = ((a.m00 * bx + a.m01 * by + a.m02 * bz) >> 12) + a.m03;
+		int y = ((a.m10 * bx + a.m11 * by + a.m12 * bz) >> 12) + a.m13;
+		int z = ((a.m20 * bx + a.m21 * by + a.m22 * bz) >> 12) + a.m23;
+		double r = radius * scale + 1;
+		int code = z + r < clipNear ? OUT_NEAR : z - r > clipFar ? OUT_FAR : 0;
+		int[] pm = projection;
+		double sx = pm[Utils.PROJ_SX];
+		double sy = pm[Utils.PROJ_SY];
+		double px = x * sx;
+		double py = y * sy;
+		double w = parallel ? 1 : z;
+		// side planes through the eye, or parallel to the view direction
+		double left = ((long) clipLeft << 16) - pm[Utils.PROJ_CX];
+		double right = ((long) clipRight << 16) - pm[Utils.PROJ_CX];
+		double top = ((long) clipTop << 16) - pm[Utils.PROJ_CY];
+		double bottom = ((long) clipBottom << 16) - pm[Utils.PROJ_CY];
+		if (px - left * w < -r * planeLength(sx, left)) code |= OUT_LEFT;
+		if (px - right * w > r * planeLength(sx, right)) code |= OUT_RIGHT;
+		if (py - top * w < -r * planeLength(sy, top)) code |= OUT_TOP;
+		if (py - bottom * w > r * planeLength(sy, bottom)) code |= OUT_BOTTOM;
+		return code;
+	}
+
+	private double planeLength(double s, double k) {
+		return Math.sqrt(parallel ? s * s : s * s + k * k);
+	}
+
+	/**
+	 * Finds the faces of the pattern that may be seen and marks the vertices they use.
+	 * Single sided faces are tested against the eye in model space, so faces turned away
+	 * are dropped before their vertices are projected.
+	 */
+	private void cullFaces(Model model, AffineTrans a, short[] vertices, int[] faceNormals,
+						   int pattern, boolean textured) {
+		int count = vertices.length / 3;
+		if (vertexUsed.length < count) {
+			vertexUsed = new boolean[count];
+		} else {
+			boolean[] used = vertexUsed;
+			for (int i = 0; i < count; i++) {
+				used[i] = false;
 			}
-			for (int face = 0; face < texMesh.length; face++) {
-				int[] lens = texMesh[face];
-				Texture tex = face >= textures.length ? null : textures[face];
-				program.setTex(tex);
-				int cnt = lens[0];
-				if (cnt > 0) {
-					glEnable(GL_CULL_FACE);
-					glDrawArrays(GL_TRIANGLES, pos, cnt);
-					pos += cnt;
+		}
+		if (faceVisible.length < faceNormals.length / 3) {
+			faceVisible = new boolean[faceNormals.length / 3];
+		}
+
+		// adjugate of the layout rotation and scale
+		long i00 = (long) a.m11 * a.m22 - (long) a.m12 * a.m21;
+		long i01 = (long) a.m02 * a.m21 - (long) a.m01 * a.m22;
+		long i02 = (long) a.m01 * a.m12 - (long) a.m02 * a.m11;
+		long i10 = (long) a.m12 * a.m20 - (long) a.m10 * a.m22;
+		long i11 = (long) a.m00 * a.m22 - (long) a.m02 * a.m20;
+		long i12 = (long) a.m02 * a.m10 - (long) a.m00 * a.m12;
+		long i20 = (long) a.m10 * a.m21 - (long) a.m11 * a.m20;
+		long i21 = (long) a.m01 * a.m20 - (long) a.m00 * a.m21;
+		long i22 = (long) a.m00 * a.m11 - (long) a.m01 * a.m10;
+		long det = a.m00 * i00 + a.m01 * i10 + a.m02 * i20;
+		if (det == 0) {
+			// degenerate layout, keep every face
+			cullFaces(model, vertices, null, 0, 0, 0, 0, pattern, textured);
+			return;
+		}
+		if (parallel) {
+			// faces are seen when turned against the view direction, in model space
+			// the third column of the adjugate
+			cullFaces(model, vertices, faceNormals, 0, i02, i12, i22, pattern, textured);
+			return;
+		}
+		// eye position in model space, 28.4
+		double k = -4096.0 * 16 / det;
+		long ex = (long) ((i00 * a.m03 + i01 * a.m13 + i02 * a.m23) * k);
+		long ey = (long) ((i10 * a.m03 + i11 * a.m13 + i12 * a.m23) * k);
+		long ez = (long) ((i20 * a.m03 + i21 * a.m13 + i22 * a.m23) * k);
+		// a mirroring layout flips the winding on screen
+		cullFaces(model, vertices, faceNormals, det > 0 ? 1 : -1, ex, ey, ez, pattern, textured);
+	}
+
+	/**
+	 * @param eyeSide 0 for a parallel layout with view direction (x, y, z),
+	 *                otherwise the sign of the layout determinant and the eye at (x, y, z)
+	 */
+	private void cullFaces(Model model, short[] vertices, int[] faceNormals, int eyeSide,
+						   long x, long y, long z, int pattern, boolean textured) {
+		if (textured) {
+			markFaces(model.polygonsT, model.vertexBones, vertices, faceNormals, eyeSide, x, y, z, pattern);
+		}
+		markFaces(model.polygonsC, model.vertexBones, vertices, faceNormals, eyeSide, x, y, z, pattern);
+	}
+
+	private void markFaces(Model.Polygon[] polygons, short[] vertexBones, short[] vertices,
+						   int[] faceNormals, int eyeSide, long x, long y, long z, int pattern) {
+		boolean[] used = vertexUsed;
+		boolean[] visible = faceVisible;
+		int[] bones = boneCodes;
+		for (int i = 0; i < polygons.length; i++) {
+			Model.Polygon p = polygons[i];
+			int pp = p.pattern;
+			if ((pp & pattern) != pp) continue;
+			boolean cull = faceNormals != null && p.doubleFace == 0;
+			int[] indices = p.indices;
+			for (int t = 0, face = p.firstFace; t < indices.length - 2; t++, face++) {
+				int a = indices[t << 1];
+				int b = indices[1];
+				int c = indices[t + 2];
+				// outside a plane with the bones of all three vertices
+				if ((bones[vertexBones[a]] & bones[vertexBones[b]] & bones[vertexBones[c]]) != 0) {
+					visible[face] = false;
+					continue;
 				}
-				cnt = lens[1];
-				if (cnt > 0) {
-					glDisable(GL_CULL_FACE);
-					glDrawArrays(GL_TRIANGLES, pos, cnt);
-					pos += cnt;
+				if (cull) {
+					int n = face * 3;
+					long nx = faceNormals[n];
+					long ny = faceNormals[n + 1];
+					long nz = faceNormals[n + 2];
+					boolean front;
+					if (eyeSide == 0) {
+						front = nx * x + ny * y + nz * z > 0;
+					} else {
+						int o = a * 3;
+						long d = nx * (x - (vertices[o] << 4)) + ny * (y - (vertices[o + 1] << 4))
+								+ nz * (z - (vertices[o + 2] << 4));
+						front = eyeSide > 0 ? d < 0 : d > 0;
+					}
+					if (!front) {
+						visible[face] = false;
+						continue;
+					}
 				}
+				visible[face] = true;
+				used[a] = true;
+				used[b] = true;
+				used[c] = true;
 			}
-			blendMode++;
 		}
-		checkGlError("glDrawArrays");
 	}
 
-	private void renderModel(Model model, boolean enableBlending) {
-		int[][] meshes = model.subMeshesLengthsC;
-		int length = meshes.length;
-		int pos = model.numVerticesPolyT;
-		int blendMode = 0;
-		if (flushStep == 1) {
-			if (enableBlending) length = 1;
-			glDisable(GL_BLEND);
+	private void projectVertices(AffineTrans a, short[] vertices, byte[] normals, boolean lighting) {
+		int count = vertices.length / 3;
+		if (outcodes.length < count) {
+			screenVertices = new int[count * Rasterizer.VERTEX_SIZE];
+			viewVertices = new int[count * 3];
+			outcodes = new int[count];
+		}
+		int[] screen = screenVertices;
+		int[] view = viewVertices;
+		int[] codes = outcodes;
+		boolean[] used = vertexUsed;
+		if (parallel) {
+			projectParallel(a, vertices, count, screen, view, codes);
 		} else {
-			int[] mesh = meshes[blendMode++];
-			int cnt = 0;
-			for (int len : mesh) {
-				cnt += len;
+			for (int i = 0; i < count; i++) {
+				if (!used[i]) continue;
+				int p = i * 3;
+				int x = vertices[p];
+				int y = vertices[p + 1];
+				int z = vertices[p + 2];
+				int vx = ((a.m00 * x + a.m01 * y + a.m02 * z) >> 12) + a.m03;
+				int vy = ((a.m10 * x + a.m11 * y + a.m12 * z) >> 12) + a.m13;
+				int vz = ((a.m20 * x + a.m21 * y + a.m22 * z) >> 12) + a.m23;
+				view[p] = vx;
+				view[p + 1] = vy;
+				view[p + 2] = vz;
+				int code = outcode(vx, vy, vz);
+				if ((code & OUT_CLIP) == 0 && !project(vx, vy, vz, screen, i * Rasterizer.VERTEX_SIZE)) {
+					code |= OUT_GUARD;
+				}
+				codes[i] = code;
 			}
-			pos += cnt;
 		}
-		while (blendMode < length) {
-			int[] mesh = meshes[blendMode];
-			if (flushStep == 2) {
-				applyBlending(blendMode << 1);
+		if (lighting && normals != null) {
+			for (int i = 0, p = 0; i < count; i++, p += 3) {
+				if (!used[i]) continue;
+				shadeVertex(a, normals[p], normals[p + 1], normals[p + 2], screen, i * Rasterizer.VERTEX_SIZE);
 			}
-			int cnt = mesh[0];
-			if (cnt > 0) {
-				glEnable(GL_CULL_FACE);
-				glDrawArrays(GL_TRIANGLES, pos, cnt);
-				pos += cnt;
+		}
+	}
+
+	/**
+	 * Same as {@link #project} for every vertex of a parallel layout, with the matrix and
+	 * the projection kept in locals. There is no divide, and Q stays 0 so textures are
+	 * interpolated affinely, which is exact without perspective.
+	 */
+	private void projectParallel(AffineTrans a, short[] vertices, int count,
+								 int[] screen, int[] view, int[] codes) {
+		int m00 = a.m00, m01 = a.m01, m02 = a.m02, m03 = a.m03;
+		int m10 = a.m10, m11 = a.m11, m12 = a.m12, m13 = a.m13;
+		int m20 = a.m20, m21 = a.m21, m22 = a.m22, m23 = a.m23;
+		int[] pm = projection;
+		long cx = pm[Utils.PROJ_CX];
+		long cy = pm[Utils.PROJ_CY];
+		int scaleX = pm[Utils.PROJ_SX];
+		int scaleY = pm[Utils.PROJ_SY];
+		long guard = (long) GUARD_BAND << 16;
+		long left = (long) clipLeft << 16;
+		long top = (long) clipTop << 16;
+		long right = (long) clipRight << 16;
+		long bottom = (long) clipBottom << 16;
+		boolean[] used = vertexUsed;
+		for (int i = 0, p = 0, o = 0; i < count; i++, p += 3, o += Rasterizer.VERTEX_SIZE) {
+			if (!used[i]) continue;
+			int x = vertices[p];
+			int y = vertices[p + 1];
+			int z = vertices[p + 2];
+			int vx = ((m00 * x + m01 * y + m02 * z) >> 12) + m03;
+			int vy = ((m10 * x + m11 * y + m12 * z) >> 12) + m13;
+			int vz = ((m20 * x + m21 * y + m22 * z) >> 12) + m23;
+			view[p] = vx;
+			view[p + 1] = vy;
+			view[p + 2] = vz;
+			long sx = cx + (long) vx * scaleX;
+			long sy = cy + (long) vy * scaleY;
+			int code = vz < clipNear ? OUT_NEAR : vz > clipFar ? OUT_FAR : 0;
+			if (sx < left) code |= OUT_LEFT;
+			if (sx > right) code |= OUT_RIGHT;
+			if (sy < top) code |= OUT_TOP;
+			if (sy > bottom) code |= OUT_BOTTOM;
+			if (sx < -guard || sx > guard || sy < -guard || sy > guard) code |= OUT_GUARD;
+			codes[i] = code;
+			if (code >= OUT_NEAR) continue;
+			screen[o + Rasterizer.X] = (int) sx;
+			screen[o + Rasterizer.Y] = (int) sy;
+			screen[o + Rasterizer.Z] = (vz + 65536) >> 2;
+			screen[o + Rasterizer.Q] = 0;
+		}
+	}
+
+	/**
+	 * Projects a view space point into the rasterizer vertex at {@code o}.
+	 *
+	 * @return false if the point is out of the depth range or the guard band
+	 */
+	private boolean project(int x, int y, int z, int[] dst, int o) {
+		int[] pm = projection;
+		long sx;
+		long sy;
+		int depth;
+		int q = 0;
+		if (parallel) {
+			sx = pm[Utils.PROJ_CX] + (long) x * pm[Utils.PROJ_SX];
+			sy = pm[Utils.PROJ_CY] + (long) y * pm[Utils.PROJ_SY];
+			depth = (z + 65536) >> 2;
+			if (depth < 0 || depth > Rasterizer.DEPTH_FAR) return false;
+		} else {
+			int near = pm[Utils.PROJ_NEAR];
+			int far = pm[Utils.PROJ_FAR];
+			if (z < clipNear || z > clipFar) return false;
+			sx = pm[Utils.PROJ_CX] + (long) x * pm[Utils.PROJ_SX] / z;
+			sy = pm[Utils.PROJ_CY] + (long) y * pm[Utils.PROJ_SY] / z;
+			depth = (int) ((long) Rasterizer.DEPTH_FAR * far * (z - near) / ((long) z * (far - near)));
+			if (z > 0) {
+				q = (int) ((1L << 30) / z);
 			}
-			cnt = mesh[1];
-			if (cnt > 0) {
-				glDisable(GL_CULL_FACE);
-				glDrawArrays(GL_TRIANGLES, pos, cnt);
-				pos += cnt;
+		}
+		if (sx < -(GUARD_BAND << 16) || sx > GUARD_BAND << 16
+				|| sy < -(GUARD_BAND << 16) || sy > GUARD_BAND << 16) {
+			return false;
+		}
+		dst[o + Rasterizer.X] = (int) sx;
+		dst[o + Rasterizer.Y] = (int) sy;
+		dst[o + Rasterizer.Z] = depth;
+		dst[o + Rasterizer.Q] = q;
+		return true;
+	}
+
+	/**
+	 * Computes the light level and sphere map coordinates of a vertex from its normal
+	 * (model space, 64 = 1.0).
+	 */
+	private void shadeVertex(AffineTrans a, int nx, int ny, int nz, int[] dst, int o) {
+		int x = (a.m00 * nx + a.m01 * ny + a.m02 * nz) >> 12;
+		int y = (a.m10 * nx + a.m11 * ny + a.m12 * nz) >> 12;
+		int z = (a.m20 * nx + a.m21 * ny + a.m22 * nz) >> 12;
+		int dot = (x * lightX + y * lightY + z * lightZ) >> 6;
+		if (dot < 0) dot = 0;
+		int level = (lightAmb + (dot * lightDir >> 12)) >> 4;
+		dst[o + Rasterizer.S] = level < 0 ? 0 : level > 255 ? 255 : level;
+		int[] table = sphereCoords;
+		if (table != null) {
+			dst[o + Rasterizer.SU] = table[sphereIndex(x)];
+			dst[o + Rasterizer.SV] = table[Texture.SPHERE_TABLE + sphereIndex(y)];
+		}
+	}
+
+	private static int sphereIndex(int n) {
+		return n < -64 ? 0 : n > 64 ? 128 : n + 64;
+	}
+
+	/**
+	 * Selects the sphere map of lit specular polygons, must follow {@link #setLight}.
+	 *
+	 * @return the sphere map, or null if there is none
+	 */
+	private Texture setSphere(Effect3D effect, boolean enabled) {
+		Texture sphere = null;
+		if (enabled) {
+			sphere = effect.mTexture;
+			if (sphere == null && specular) {
+				sphere = getHighlight();
+			}
+		}
+		sphereCoords = sphere == null ? null : sphere.getSphereCoords();
+		return sphere;
+	}
+
+	/**
+	 * Tabulates the specular highlight of the current light by sphere coordinates,
+	 * rebuilt only when the light changes.
+	 */
+	private Texture getHighlight() {
+		if (lightDir == 0) return null;
+		if (highlight != null && highlightX == lightX && highlightY == lightY
+				&& highlightZ == lightZ && highlightDir == lightDir) {
+			return highlight;
+		}
+		// half vector of the light and the direction to the viewer, 4096 = 1.0
+		int hx = lightX;
+		int hy = lightY;
+		int hz = lightZ - 4096;
+		int length = (int) Math.sqrt((double) hx * hx + (double) hy * hy + (double) hz * hz);
+		if (length == 0) return null;
+		hx = (hx << 12) / length;
+		hy = (hy << 12) / length;
+		hz = (hz << 12) / length;
+
+		byte[] index = new byte[HIGHLIGHT_SIZE * HIGHLIGHT_SIZE];
+		for (int v = 0; v < HIGHLIGHT_SIZE; v++) {
+			// normal at the texel center, 64 = 1.0
+			int ny = (v << 1) + 1 - HIGHLIGHT_SIZE;
+			for (int u = 0; u < HIGHLIGHT_SIZE; u++) {
+				int nx = (u << 1) + 1 - HIGHLIGHT_SIZE;
+				int r = 4096 - nx * nx - ny * ny;
+				int nz = r <= 0 ? 0 : -(int) Math.sqrt(r);
+				int dot = (nx * hx + ny * hy + nz * hz) >> 6;
+				if (dot <= 0) continue;
+				// shininess 16
+				for (int i = 0; i < 4; i++) {
+					dot = dot * dot >> 12;
+				}
+				int level = (dot * lightDir >> 12) >> 4;
+				index[v * HIGHLIGHT_SIZE + u] = (byte) (level > 255 ? 255 : level);
 			}
-			blendMode++;
 		}
-		checkGlError("glDrawArrays");
+		int[] palette = new int[256];
+		for (int i = 0; i < 256; i++) {
+			palette[i] = i * 0x010101;
+		}
+		highlight = new Texture(index, palette, HIGHLIGHT_SIZE, HIGHLIGHT_SIZE, false);
+		highlightX = lightX;
+		highlightY = lightY;
+		highlightZ = lightZ;
+		highlightDir = lightDir;
+		return highlight;
+	}
+
+	private void setLight(Effect3D effect) {
+		Light light = effect.light;
+		if (!effect.isLighting || light == null) {
+			lightDir = 0;
+			lightAmb = 4096;
+			return;
+		}
+		Vector3D dir = new Vector3D(light.getDirection());
+		dir.unit();
+		lightX = dir.x;
+		lightY = dir.y;
+		lightZ = dir.z;
+		lightDir = light.getDirIntensity();
+		lightAmb = light.getAmbIntensity();
+	}
+
+	private void setProjection(FigureLayout layout, int x, int y) {
+		int[] pm = projection;
+		switch (layout.settingIndex) {
+			case Graphics3D.COMMAND_PARALLEL_SCALE:
+				Utils.parallelScale(pm, x, y, layout, width, height);
+				parallel = true;
+				break;
+			case Graphics3D.COMMAND_PARALLEL_SIZE:
+				Utils.parallelWH(pm, x, y, layout, width, height);
+				parallel = true;
+				break;
+			case Graphics3D.COMMAND_PERSPECTIVE_FOV:
+				Utils.perspectiveFov(pm, x, y, layout, width, height);
+				parallel = false;
+				break;
+			case Graphics3D.COMMAND_PERSPECTIVE_WH:
+				Utils.perspectiveWH(pm, x, y, layout, width, height);
+				parallel = false;
+				break;
+		}
+		if (parallel) {
+			// depth (z + 65536) >> 2 from 0 to DEPTH_FAR
+			clipNear = -65536;
+			clipFar = (Rasterizer.DEPTH_FAR << 2) + 3 - 65536;
+		} else {
+			clipNear = Math.max(pm[Utils.PROJ_NEAR], 1);
+			clipFar = pm[Utils.PROJ_FAR];
+		}
 	}
 
 	synchronized void release() {
-		bindEglContext();
-		stack.clear();
-		if (postCopy2D) {
-			copy2d(false);
-		}
-		Rect clip = this.gClip;
-		Utils.glReadPixels(clip.left, clip.top, clip.width(), clip.height(), mBitmapBuffer);
-		releaseEglContext();
+		stack.removeAllElements();
+		int w = gClipRight - gClipLeft;
+		int h = gClipBottom - gClipTop;
+		if (w <= 0 || h <= 0) {
+			return;
+		}
+		if (!Rasterizer.RGB565) {
+			graphics.drawRGB(colorBuffer, gClipTop * width + gClipLeft, width,
+					gClipLeft, gClipTop, w, h, postCopy2D);
+			return;
+		}
+		// widened a few rows at a time, a full ARGB copy would cost the memory saved
+		int rows = Math.max(1, Math.min(h, PRESENT_PIXELS / w));
+		if (presentBuffer.length < rows * w) {
+			presentBuffer = new int[rows * w];
+		}
+		int[] dst = presentBuffer;
+		short[] src = colorBuffer565;
+		for (int y = gClipTop; y < gClipBottom; y += rows) {
+			int n = Math.min(rows, gClipBottom - y);
+			for (int j = 0; j < n; j++) {
+				for (int i = (y + j) * width + gClipLeft, o = j * w, end = o + w; o < end; i++, o++) {
+					dst[o] = Rasterizer.toARGB(src[i] & 0xFFFF);
+				}
+			}
+			graphics.drawRGB(dst, 0, w, gClipLeft, y, w, n, postCopy2D);
+		}
 	}
 
 	synchronized void flush() {
 		if (stack.isEmpty()) {
 			return;
 		}
-		bindEglContext();
 		try {
-			if (!backCopied && preCopy2D) copy2d(true);
-			flushStep = 1;
-			for (RenderNode r : stack) {
-				r.run();
+			runNodes();
+		} finally {
+			stack.removeAllElements();
+			resolve();
+		}
+	}
+
+	/**
+	 * Runs the queued nodes from front to back, so near opaque geometry fills the depth
+	 * buffer first. Blended batches of the nodes are drawn back to front on resolve,
+	 * those of nodes at the same depth in submission order.
+	 */
+	private void runNodes() {
+		int size = stack.size();
+		if (nodes.length < size) {
+			nodes = new RenderNode[size];
+		}
+		RenderNode[] nodes = this.nodes;
+		stack.copyInto(nodes);
+		// stable insertion sort, nodes at the same depth keep submission order
+		for (int i = 1; i < size; i++) {
+			RenderNode n = nodes[i];
+			int depth = n.depth;
+			int j = i - 1;
+			while (j >= 0 && nodes[j].depth > depth) {
+				nodes[j + 1] = nodes[j];
+				j--;
 			}
-			flushStep = 2;
-			for (RenderNode r : stack) {
+			nodes[j + 1] = n;
+		}
+		try {
+			for (int i = 0; i < size; i++) {
+				RenderNode r = nodes[i];
+				blendQueue.beginBatch(r.depth);
 				r.run();
 				r.recycle();
 			}
-			glDisable(GL_BLEND);
-			glDepthMask(true);
-			glClear(GL_DEPTH_BUFFER_BIT);
-			glFlush();
 		} finally {
-			stack.clear();
-			releaseEglContext();
+			for (int i = 0; i < size; i++) {
+				nodes[i] = null;
+			}
 		}
 	}
 
-	private void renderPrimitives(Texture texture, int command, int numPrimitives,
-								  int[] vertices, int[] normals, int[] texCoords,
-								  int[] colors, Effect3D effect,
-								  FigureLayout layout) {
-		float[] pm = getProjectionMatrix(layout, 0, 0);
-		float[] mvm = getMvMatrix(layout);
+	void renderPrimitives(Texture texture, int command, int numPrimitives,
+						  int[] vertices, int[] normals, int[] texCoords,
+						  int[] colors, Effect3D effect,
+						  FigureLayout layout) {
 		int blend = command & Graphics3D.PATTR_BLEND_SUB;
 		boolean blendEnabled = (effect.isTransparency || (command & Graphics3D.ENV_ATTR_SEMI_TRANSPARENT) != 0) && blend != 0;
-		if (blendEnabled) {
-			if (flushStep == 1) {
-				return;
-			}
-		} else if (flushStep == 2) {
-			return;
-		}
-		glEnable(GL_DEPTH_TEST);
-		glDepthFunc(GL_LESS);
-		glDepthMask(flushStep == 1);
+		setProjection(layout, 0, 0);
+		int blendMode = blendEnabled ? blend >> 4 : 0;
 		switch ((command & 0x7000000)) {
-			case PRIMITVE_POINTS: {
-				int vcLen = numPrimitives * 3;
-				FloatBuffer vcBuf = ByteBuffer.allocateDirect(numPrimitives * 3 * 4)
-						.order(ByteOrder.nativeOrder()).asFloatBuffer();
-				for (int i = 0; i < vcLen; i++) {
-					vcBuf.put(vertices[i]);
-				}
-				Program.Color program = Program.color;
-				program.use();
-				program.setLight(null);
-				float[] mvp = MVP_TMP;
-				Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-				program.bindMatrices(mvp, mvm);
-
-				if ((command & PDATA_COLOR_PER_COMMAND) != 0) {
-					program.setColor(colors[0]);
-				} else {
-					ByteBuffer colorBuf = ByteBuffer.allocateDirect(numPrimitives * 3 * 4)
-							.order(ByteOrder.nativeOrder());
-					for (int i = 0; i < numPrimitives; i++) {
-						int color = colors[i];
-						colorBuf.put((byte) (color >> 16 & 0xFF));
-						colorBuf.put((byte) (color >> 8 & 0xFF));
-						colorBuf.put((byte) (color & 0xFF));
-					}
-					colorBuf.rewind();
-					glVertexAttribPointer(program.aColorData, 3, GL_UNSIGNED_BYTE, false, 3, colorBuf);
-					glEnableVertexAttribArray(program.aColorData);
-					program.disableUniformColor();
-				}
-				vcBuf.rewind();
-				glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, vcBuf);
-				glEnableVertexAttribArray(program.aPosition);
-
-				applyBlending(blendEnabled ? blend >> 4 : 0);
-				glDrawArrays(GL_POINTS, 0, numPrimitives);
-				glDisableVertexAttribArray(program.aPosition);
-				glDisableVertexAttribArray(program.aColorData);
-				checkGlError("glDrawArrays");
+			case Graphics3D.PRIMITVE_POINTS:
+				renderLines(command, numPrimitives, 1, vertices, colors, layout.affine, blendMode);
 				break;
-			}
-			case PRIMITVE_LINES: {
-				int vcLen = numPrimitives * 3 * 2;
-				FloatBuffer vcBuf = ByteBuffer.allocateDirect(numPrimitives * 2 * 3 * 4)
-						.order(ByteOrder.nativeOrder()).asFloatBuffer();
-				for (int i = 0; i < vcLen; i++) {
-					vcBuf.put(vertices[i]);
-				}
-				Program.Color program = Program.color;
-				program.use();
-				program.setLight(null);
-				float[] mvp = MVP_TMP;
-				Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-				program.bindMatrices(mvp, mvm);
-
-				if ((command & PDATA_COLOR_PER_COMMAND) != 0) {
-					program.setColor(colors[0]);
-				} else {
-					ByteBuffer colorBuf = ByteBuffer.allocateDirect(numPrimitives * 2 * 3 * 4)
-							.order(ByteOrder.nativeOrder());
-					for (int i = 0; i < numPrimitives; i++) {
-						int color = colors[i];
-						byte r = (byte) (color >> 16 & 0xFF);
-						byte g = (byte) (color >> 8 & 0xFF);
-						byte b = (byte) (color & 0xFF);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-					}
-					colorBuf.rewind();
-					glVertexAttribPointer(program.aColorData, 3, GL_UNSIGNED_BYTE, false, 3, colorBuf);
-					glEnableVertexAttribArray(program.aColorData);
-					program.disableUniformColor();
-				}
-				vcBuf.rewind();
-				glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, vcBuf);
-				glEnableVertexAttribArray(program.aPosition);
-
-				applyBlending(blendEnabled ? blend >> 4 : 0);
-				glDrawArrays(GL_LINES, 0, numPrimitives * 2);
-				glDisableVertexAttribArray(program.aPosition);
-				glDisableVertexAttribArray(program.aColorData);
-				checkGlError("glDrawArrays");
+			case Graphics3D.PRIMITVE_LINES:
+				renderLines(command, numPrimitives, 2, vertices, colors, layout.affine, blendMode);
 				break;
-			}
-			case PRIMITVE_TRIANGLES: {
-				glDisable(GL_CULL_FACE);
-				int vcLen = numPrimitives * 3 * 3;
-				FloatBuffer vcBuf = ByteBuffer.allocateDirect(vcLen * 4)
-						.order(ByteOrder.nativeOrder()).asFloatBuffer();
-				for (int i = 0; i < vcLen; i++) {
-					vcBuf.put(vertices[i]);
-				}
-				vcBuf.rewind();
-				FloatBuffer ncBuf;
-				switch (command & PDATA_NORMAL_PER_VERTEX) {
-					case PDATA_NORMAL_PER_FACE:
-						ncBuf = ByteBuffer.allocateDirect(vcLen * 4)
-								.order(ByteOrder.nativeOrder()).asFloatBuffer();
-						for (int i = 0, normLen = numPrimitives * 3; i < normLen; ) {
-							float x = normals[i++];
-							float y = normals[i++];
-							float z = normals[i++];
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-						}
-						break;
-					case PDATA_NORMAL_PER_VERTEX:
-						ncBuf = ByteBuffer.allocateDirect(vcLen * 4)
-								.order(ByteOrder.nativeOrder()).asFloatBuffer();
-						for (int i = 0; i < vcLen; i++) {
-							ncBuf.put(normals[i]);
-						}
-						break;
-					default:
-						ncBuf = null;
-				}
-				if ((command & PDATA_COLOR_PER_COMMAND) != 0) {
-					float[] mvp = MVP_TMP;
-					Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-					renderMesh(mvp, mvm, command, blendEnabled, effect, vcBuf, ncBuf, colors[0]);
-				} else if ((command & PDATA_TEXURE_COORD) != 0) {
-					int tcLen = numPrimitives * 3 * 2;
-					ByteBuffer tcBuf = ByteBuffer.allocateDirect(tcLen)
-							.order(ByteOrder.nativeOrder());
-					for (int i = 0; i < tcLen; i++) {
-						tcBuf.put((byte) texCoords[i]);
-					}
-					tcBuf.rewind();
-					float[] mvp = MVP_TMP;
-					Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-					renderMesh(texture, mvp, mvm, command, blendEnabled, effect, vcBuf, ncBuf, tcBuf);
-				} else if ((command & PDATA_COLOR_PER_FACE) != 0) {
-					ByteBuffer colorBuf = ByteBuffer.allocateDirect(vcLen).order(ByteOrder.nativeOrder());
-					for (int i = 0; i < numPrimitives; i++) {
-						int color = colors[i];
-						byte r = (byte) (color >> 16 & 0xFF);
-						byte g = (byte) (color >> 8 & 0xFF);
-						byte b = (byte) (color & 0xFF);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-					}
-					colorBuf.rewind();
-					float[] mvp = MVP_TMP;
-					Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-					renderMesh(mvp, mvm, command, blendEnabled, effect, vcBuf, ncBuf, colorBuf);
-				}
+			case Graphics3D.PRIMITVE_TRIANGLES:
+				renderMesh(texture, command, numPrimitives, 3, vertices, normals, texCoords,
+						colors, effect, layout.affine, blendMode);
 				break;
-			}
-			case PRIMITVE_QUADS: {
-				FloatBuffer vcBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 3 * 4)
-						.order(ByteOrder.nativeOrder()).asFloatBuffer();
-				for (int i = 0; i < numPrimitives; i++) {
-					int offset = i * 4 * 3;
-					int pos = offset;
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos++]); // A
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos++]); // B
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos++]); // C
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos]);   // D
-					pos = offset;
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos]);   // A
-					pos = offset + 2 * 3;
-					vcBuf.put(vertices[pos++]).put(vertices[pos++]).put(vertices[pos]);   // C
-				}
-				vcBuf.rewind();
-				FloatBuffer ncBuf;
-				switch (command & PDATA_NORMAL_PER_VERTEX) {
-					case PDATA_NORMAL_PER_FACE:
-						ncBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 3 * 4)
-								.order(ByteOrder.nativeOrder()).asFloatBuffer();
-						for (int i = 0, ncLen = numPrimitives * 3; i < ncLen; ) {
-							float x = normals[i++];
-							float y = normals[i++];
-							float z = normals[i++];
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-							ncBuf.put(x).put(y).put(z);
-						}
-						break;
-					case PDATA_NORMAL_PER_VERTEX:
-						ncBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 3 * 4)
-								.order(ByteOrder.nativeOrder()).asFloatBuffer();
-						for (int i = 0; i < numPrimitives; i++) {
-							int offset = i * 4 * 3;
-							int pos = offset;
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos++]); // A
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos++]); // B
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos++]); // C
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos]);   // D
-							pos = offset;
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos]);   // A
-							pos = offset + 2 * 3;
-							ncBuf.put(normals[pos++]).put(normals[pos++]).put(normals[pos]);   // C
-						}
-						break;
-					default:
-						ncBuf = null;
-				}
-				if ((command & PDATA_COLOR_PER_COMMAND) != 0) {
-					Matrix.multiplyMM(MVP_TMP, 0, pm, 0, mvm, 0);
-					renderMesh(MVP_TMP, mvm, command, blendEnabled, effect, vcBuf, ncBuf, colors[0]);
-				} else if ((command & PDATA_TEXURE_COORD) != 0) {
-					ByteBuffer tcBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 2)
-							.order(ByteOrder.nativeOrder());
-					for (int i = 0; i < numPrimitives; i++) {
-						int offset = i * 4 * 2;
-						int pos = offset;
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos++]); // A
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos++]); // B
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos++]); // C
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos]);   // D
-						pos = offset;
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos]);   // A
-						pos = offset + 2 * 2;
-						tcBuf.put((byte) texCoords[pos++]).put((byte) texCoords[pos]);   // C
-					}
-					tcBuf.rewind();
-					float[] mvp = MVP_TMP;
-					Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-					renderMesh(texture, mvp, mvm, command, blendEnabled, effect, vcBuf, ncBuf, tcBuf);
-				} else if ((command & PDATA_COLOR_PER_FACE) != 0) {
-					ByteBuffer colorBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 3 * 4)
-							.order(ByteOrder.nativeOrder());
-					for (int i = 0; i < numPrimitives; i++) {
-						int color = colors[i];
-						byte r = (byte) (color >> 16 & 0xFF);
-						byte g = (byte) (color >> 8 & 0xFF);
-						byte b = (byte) (color & 0xFF);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-						colorBuf.put(r).put(g).put(b);
-					}
-					colorBuf.rewind();
-					float[] mvp = MVP_TMP;
-					Matrix.multiplyMM(mvp, 0, pm, 0, mvm, 0);
-					renderMesh(mvp, mvm, command, blendEnabled, effect, vcBuf, ncBuf, colorBuf);
-				}
+			case Graphics3D.PRIMITVE_QUADS:
+				renderMesh(texture, command, numPrimitives, 4, vertices, normals, texCoords,
+						colors, effect, layout.affine, blendMode);
+				break;
+			case Graphics3D.PRIMITVE_POINT_SPRITES:
+				renderSprites(texture, command, numPrimitives, vertices, texCoords, effect, layout, blendMode);
 				break;
-			}
-			case Graphics3D.PRIMITVE_POINT_SPRITES: {
-				renderSprites(texture, command, numPrimitives, vertices, texCoords, layout, pm, mvm, blend, blendEnabled);
-			}
 		}
 	}
 
-	private void renderSprites(Texture texture, int command, int numPrimitives, int[] vertices, int[] texCoords, FigureLayout layout, float[] pm, float[] mvm, int blend, boolean blendEnabled) {
-		if (skipSprites) return;
+	private void renderSprites(Texture texture, int command, int numPrimitives, int[] vertices,
+							   int[] texCoords, Effect3D effect, FigureLayout layout, int blendMode) {
+		if (skipSprites || texture == null) return;
 
 		int numParams;
-		switch (command & PDATA_POINT_SPRITE_PARAMS_PER_VERTEX) {
-			case PDATA_POINT_SPRITE_PARAMS_PER_CMD:
+		switch (command & Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_VERTEX) {
+			case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_CMD:
 				numParams = 1;
 				break;
-			case PDATA_POINT_SPRITE_PARAMS_PER_FACE:
-			case PDATA_POINT_SPRITE_PARAMS_PER_VERTEX:
+			case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_FACE:
+			case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_VERTEX:
 				numParams = numPrimitives;
 				break;
 			default:
 				throw new IllegalArgumentException("Point sprite params is 0");
 		}
-		Program.Sprite program = Program.sprite;
-		program.use();
+		material.set(texture, 0, blendMode, (command & Graphics3D.PATTR_COLORKEY) != 0, blendMode == 0);
+		material.setShading(false, effect, null);
+		applyMaterial();
 
-		float[] m = new float[16];
-		Matrix.multiplyMM(m, 0, pm, 0, mvm, 0);
-		float[] vert = new float[8];
-		float[] quad = new float[4 * 6];
-
-		FloatBuffer vcBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 4 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
-		ByteBuffer tcBuf = ByteBuffer.allocateDirect(numPrimitives * 6 * 2).order(ByteOrder.nativeOrder());
-		int pos = 0;
+		AffineTrans a = layout.affine;
+		int[] pm = projection;
+		int[] tri = this.tri;
+		int[] quad = spriteQuad;
+		// upright sprites are filled as rectangles, blended ones are queued as such
+		boolean blit = mode == MODE_SCANLINE;
 		int texOffset = 0;
-		for (int i = 0; i < numPrimitives; i++) {
-			vert[4] = vertices[pos++];
-			vert[5] = vertices[pos++];
-			vert[6] = vertices[pos++];
-			vert[7] = 1.0f;
-			Matrix.multiplyMV(vert, 0, m, 0, vert, 4);
+		for (int i = 0, pos = 0; i < numPrimitives; i++) {
+			int x = vertices[pos++];
+			int y = vertices[pos++];
+			int z = vertices[pos++];
+			int vz = ((a.m20 * x + a.m21 * y + a.m22 * z) >> 12) + a.m23;
+			if (!project(((a.m00 * x + a.m01 * y + a.m02 * z) >> 12) + a.m03,
+					((a.m10 * x + a.m11 * y + a.m12 * z) >> 12) + a.m13,
+					vz, tri, 0)) {
+				continue;
+			}
 
 			if (numParams != 1) {
 				texOffset = i * 8;
 			}
 
-			float width = texCoords[texOffset];
-			float height = texCoords[texOffset + 1];
+			int width = texCoords[texOffset];
+			int height = texCoords[texOffset + 1];
 			int angle = texCoords[texOffset + 2];
-			float halfWidth;
-			float halfHeight;
+			int halfWidth;
+			int halfHeight;
 			switch (texCoords[texOffset + 7]) {
 				case Graphics3D.POINT_SPRITE_LOCAL_SIZE | Graphics3D.POINT_SPRITE_PERSPECTIVE:
-					halfWidth = width * pm[0] * 0.5f;
-					halfHeight = height * pm[5] * 0.5f;
+					if (parallel) {
+						halfWidth = (int) ((long) width * pm[Utils.PROJ_SX] >> 1);
+						halfHeight = (int) ((long) height * pm[Utils.PROJ_SY] >> 1);
+					} else {
+						halfWidth = (int) ((long) width * pm[Utils.PROJ_SX] / (vz << 1));
+						halfHeight = (int) ((long) height * pm[Utils.PROJ_SY] / (vz << 1));
+					}
 					break;
 				case Graphics3D.POINT_SPRITE_PIXEL_SIZE | Graphics3D.POINT_SPRITE_PERSPECTIVE:
-					if (layout.settingIndex <= Graphics3D.COMMAND_PARALLEL_SIZE) {
-						halfWidth = width / this.width;
-						halfHeight = height / this.height;
+					if (parallel) {
+						halfWidth = width << 15;
+						halfHeight = height << 15;
 					} else {
-						halfWidth = width / this.width * layout.near;
-						halfHeight = height / this.height * layout.near;
+						halfWidth = (int) (((long) width << 15) * pm[Utils.PROJ_NEAR] / vz);
+						halfHeight = (int) (((long) height << 15) * pm[Utils.PROJ_NEAR] / vz);
 					}
 					break;
 				case Graphics3D.POINT_SPRITE_LOCAL_SIZE | Graphics3D.POINT_SPRITE_NO_PERS:
-					if (layout.settingIndex <= Graphics3D.COMMAND_PARALLEL_SIZE) {
-						halfWidth = width * pm[0] * 0.5f;
-						halfHeight = height * pm[5] * 0.5f;
+					if (parallel) {
+						halfWidth = (int) ((long) width * pm[Utils.PROJ_SX] >> 1);
+						halfHeight = (int) ((long) height * pm[Utils.PROJ_SY] >> 1);
 					} else {
-						float near = layout.near;
-						halfWidth = width * pm[0] / near * 0.5f * vert[3];
-						halfHeight = height * pm[5] / near * 0.5f * vert[3];
+						int near = pm[Utils.PROJ_NEAR];
+						halfWidth = (int) ((long) width * pm[Utils.PROJ_SX] / (near << 1));
+						halfHeight = (int) ((long) height * pm[Utils.PROJ_SY] / (near << 1));
 					}
 					break;
 				case Graphics3D.POINT_SPRITE_PIXEL_SIZE | Graphics3D.POINT_SPRITE_NO_PERS:
-					halfWidth = width / this.width * vert[3];
-					halfHeight = height / this.height * vert[3];
+					halfWidth = width << 15;
+					halfHeight = height << 15;
 					break;
 				default:
 					throw new IllegalArgumentException();
 			}
-			Utils.getSpriteVertex(quad, vert, angle, halfWidth, halfHeight);
-			vcBuf.put(quad);
-
-			byte x0 = (byte) texCoords[texOffset + 3];
-			byte y0 = (byte) texCoords[texOffset + 4];
-			byte x1 = (byte) (texCoords[texOffset + 5] - 1);
-			byte y1 = (byte) (texCoords[texOffset + 6] - 1);
-
-			tcBuf.put(x0).put(y1);
-			tcBuf.put(x0).put(y0);
-			tcBuf.put(x1).put(y1);
-			tcBuf.put(x1).put(y1);
-			tcBuf.put(x0).put(y0);
-			tcBuf.put(x1).put(y0);
-		}
-		vcBuf.rewind();
-		glVertexAttribPointer(program.aPosition, 4, GL_FLOAT, false, 4 * 4, vcBuf);
-		glEnableVertexAttribArray(program.aPosition);
-
-		tcBuf.rewind();
-		glVertexAttribPointer(program.aColorData, 2, GL_UNSIGNED_BYTE, false, 2, tcBuf);
-		glEnableVertexAttribArray(program.aColorData);
-
-		glActiveTexture(GL_TEXTURE0);
-		glBindTexture(GL_TEXTURE_2D, texture.getId());
-		glUniform1i(program.uTexUnit, 0);
-		glUniform2f(program.uTexSize, texture.width, texture.height);
-		glUniform3fv(program.uColorKey, 1, texture.getColorKey());
-
-		applyBlending(blendEnabled ? blend >> 4 : 0);
-		glUniform1i(program.uIsTransparency, (command & PATTR_COLORKEY));
-		glDrawArrays(GL_TRIANGLES, 0, numPrimitives * 6);
-		glDisableVertexAttribArray(program.aPosition);
-		glDisableVertexAttribArray(program.aColorData);
-		checkGlError("drawPointSprites");
+			int x0 = texCoords[texOffset + 3];
+			int y0 = texCoords[texOffset + 4];
+			int x1 = texCoords[texOffset + 5] - 1;
+			int y1 = texCoords[texOffset + 6] - 1;
+			int depth = tri[Rasterizer.Z];
+			if (blit && (angle & 4095) == 0) {
+				int sx = tri[Rasterizer.X];
+				int sy = tri[Rasterizer.Y];
+				if (material.depthWrite) {
+					rasterizer.fillRect(sx - halfWidth, sy - halfHeight, sx + halfWidth, sy + halfHeight,
+							depth, x0, y0, x1, y1);
+				} else {
+					blendQueue.addRect(sx - halfWidth, sy - halfHeight, sx + halfWidth, sy + halfHeight,
+							depth, x0, y0, x1, y1);
+				}
+				continue;
+			}
+			Utils.getSpriteVertex(quad, tri[Rasterizer.X], tri[Rasterizer.Y], angle, halfWidth, halfHeight);
+			// equal Q keeps the mapping affine, but tells the view depth
+			int q = tri[Rasterizer.Q];
+			setSpriteVertex(tri, 0, quad[0], quad[1], depth, q, x0, y1);
+			setSpriteVertex(tri, 1, quad[2], quad[3], depth, q, x0, y0);
+			setSpriteVertex(tri, 2, quad[4], quad[5], depth, q, x1, y1);
+			setSpriteVertex(tri, 3, quad[6], quad[7], depth, q, x1, y0);
+			drawTriangle(tri, 0, Rasterizer.VERTEX_SIZE, Rasterizer.VERTEX_SIZE * 2);
+			drawTriangle(tri, Rasterizer.VERTEX_SIZE * 2, Rasterizer.VERTEX_SIZE, Rasterizer.VERTEX_SIZE * 3);
+		}
 	}
 
-	private void renderMesh(float[] mvp, float[] mv, int command, boolean blendEnabled,
-							Effect3D effect, FloatBuffer vertices, FloatBuffer normals, int color) {
-		Program.Color program = Program.color;
-		program.use();
-		glUniform1i(program.uIsPrimitive, GL_TRUE);
-		if (effect.isLighting && effect.mTexture != null && (command & Graphics3D.PATTR_SPHERE_MAP) != 0) {
-			glActiveTexture(GL_TEXTURE2);
-			glBindTexture(GL_TEXTURE_2D, effect.mTexture.getId());
-			glUniform1i(program.uSphereUnit, 2);
-			glUniform2f(program.uSphereSize, 64.0f / effect.mTexture.width, 64.0f / effect.mTexture.height);
-		} else {
-			glUniform2f(program.uSphereSize, -1, -1);
-		}
-		if (normals != null && (command & ENV_ATTR_LIGHTING) != 0) {
-			program.setLight(effect.isLighting ? effect.light : null);
+	/**
+	 * Queues lines, or points as lines with equal ends, colored per command or per face.
+	 */
+	private void renderLines(int command, int numPrimitives, int numCorners, int[] vertices,
+							 int[] colors, AffineTrans a, int blendMode) {
+		boolean perFace;
+		if ((command & Graphics3D.PDATA_COLOR_PER_COMMAND) != 0) {
+			perFace = false;
+		} else if ((command & Graphics3D.PDATA_COLOR_PER_FACE) != 0) {
+			perFace = true;
 		} else {
-			program.setLight(null);
+			return;
 		}
-		program.setToonShading(effect);
-		program.bindMatrices(mvp, mv);
-
-		vertices.rewind();
-		glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, vertices);
-		glEnableVertexAttribArray(program.aPosition);
-
-		if (normals != null) {
-			normals.rewind();
-			glVertexAttribPointer(program.aNormal, 3, GL_FLOAT, false, 3 * 4, normals);
-			glEnableVertexAttribArray(program.aNormal);
-		} else {
-			glDisableVertexAttribArray(program.aNormal);
+		int[] s = lineSegment;
+		int[] v = tri;
+		for (int i = 0; i < numPrimitives; i++) {
+			for (int k = 0; k < 2; k++) {
+				int p = (i * numCorners + Math.min(k, numCorners - 1)) * 3;
+				int x = vertices[p];
+				int y = vertices[p + 1];
+				int z = vertices[p + 2];
+				s[k * 3] = ((a.m00 * x + a.m01 * y + a.m02 * z) >> 12) + a.m03;
+				s[k * 3 + 1] = ((a.m10 * x + a.m11 * y + a.m12 * z) >> 12) + a.m13;
+				s[k * 3 + 2] = ((a.m20 * x + a.m21 * y + a.m22 * z) >> 12) + a.m23;
+			}
+			if (!clipLineDepth(s, clipNear, 1) || !clipLineDepth(s, clipFar, -1)
+					|| !project(s[0], s[1], s[2], v, 0)
+					|| !project(s[3], s[4], s[5], v, Rasterizer.VERTEX_SIZE)) {
+				continue;
+			}
+			lineQueue.add(v[Rasterizer.X], v[Rasterizer.Y], v[Rasterizer.Z],
+					v[Rasterizer.VERTEX_SIZE + Rasterizer.X], v[Rasterizer.VERTEX_SIZE + Rasterizer.Y],
+					v[Rasterizer.VERTEX_SIZE + Rasterizer.Z], colors[perFace ? i : 0], blendMode);
 		}
-
-		program.setColor(color);
-
-		glDisable(GL_CULL_FACE);
-		int blendMode = command & PATTR_BLEND_SUB;
-		applyBlending(blendEnabled ? blendMode >> 4 : 0);
-		glDrawArrays(GL_TRIANGLES, 0, vertices.capacity() / 3);
-		glDisableVertexAttribArray(program.aPosition);
-		glDisableVertexAttribArray(program.aNormal);
-		checkGlError("glDrawArrays");
 	}
 
-	private void renderMesh(float[] mvp, float[] mv, int command, boolean blendEnabled,
-							Effect3D effect, FloatBuffer vertices, FloatBuffer normals, ByteBuffer colors) {
-		Program.Color program = Program.color;
-		program.use();
-		glUniform1i(program.uIsPrimitive, GL_TRUE);
-		if (effect.isLighting && effect.mTexture != null && (command & Graphics3D.PATTR_SPHERE_MAP) != 0) {
-			glActiveTexture(GL_TEXTURE2);
-			glBindTexture(GL_TEXTURE_2D, effect.mTexture.getId());
-			glUniform1i(program.uSphereUnit, 2);
-			glUniform2f(program.uSphereSize, 64.0f / effect.mTexture.width, 64.0f / effect.mTexture.height);
-		} else {
-			glUniform2f(program.uSphereSize, -1, -1);
-		}
-		if (normals != null && (command & ENV_ATTR_LIGHTING) != 0) {
-			program.setLight(effect.isLighting ? effect.light : null);
-		} else {
-			program.setLight(null);
+	/**
+	 * Moves the ends of a view space segment {x0, y0, z0, x1, y1, z1} to the inside
+	 * of a depth plane.
+	 *
+	 * @param side 1 to keep depths from {@code plane} on, -1 to keep depths up to it
+	 * @return false if the whole segment is outside
+	 */
+	private static boolean clipLineDepth(int[] s, int plane, int side) {
+		long d0 = ((long) s[2] - plane) * side;
+		long d1 = ((long) s[5] - plane) * side;
+		if (d0 < 0 && d1 < 0) return false;
+		if (d0 >= 0 && d1 >= 0) return true;
+		int out = d0 < 0 ? 0 : 3;
+		int in = 3 - out;
+		long dOut = d0 < 0 ? d0 : d1;
+		long dIn = d0 < 0 ? d1 : d0;
+		for (int c = 0; c < 2; c++) {
+			s[out + c] += (int) ((long) (s[in + c] - s[out + c]) * dOut / (dOut - dIn));
 		}
-		program.bindMatrices(mvp, mv);
-		program.setToonShading(effect);
-
-		vertices.rewind();
-		glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, vertices);
-		glEnableVertexAttribArray(program.aPosition);
-
-		if (normals != null) {
-			normals.rewind();
-			glVertexAttribPointer(program.aNormal, 3, GL_FLOAT, false, 3 * 4, normals);
-			glEnableVertexAttribArray(program.aNormal);
-		} else {
-			glDisableVertexAttribArray(program.aNormal);
-		}
-
-		colors.rewind();
-		glVertexAttribPointer(program.aColorData, 3, GL_UNSIGNED_BYTE, false, 3, colors);
-		glEnableVertexAttribArray(program.aColorData);
-		program.disableUniformColor();
-
-		glDisable(GL_CULL_FACE);
-		int blendMode = command & PATTR_BLEND_SUB;
-		applyBlending(blendEnabled ? blendMode >> 4 : 0);
-		glDrawArrays(GL_TRIANGLES, 0, vertices.capacity() / 3);
-		glDisableVertexAttribArray(program.aColorData);
-		glDisableVertexAttribArray(program.aPosition);
-		glDisableVertexAttribArray(program.aNormal);
-		checkGlError("glDrawArrays");
+		s[out + 2] = plane;
+		return true;
 	}
 
-	private void renderMesh(Texture texture, float[] mvp, float[] mv, int command, boolean blendEnabled,
-							Effect3D effect, FloatBuffer vertices, FloatBuffer normals, ByteBuffer texCoords) {
-		Program.Tex program = Program.tex;
-		program.use();
-		glUniform1i(program.uIsPrimitive, GL_TRUE);
-		if (effect.isLighting && effect.mTexture != null && (command & Graphics3D.PATTR_SPHERE_MAP) != 0) {
-			glActiveTexture(GL_TEXTURE2);
-			glBindTexture(GL_TEXTURE_2D, effect.mTexture.getId());
-			glUniform1i(program.uSphereUnit, 2);
-			glUniform2f(program.uSphereSize, 64.0f / effect.mTexture.width, 64.0f / effect.mTexture.height);
-		} else {
-			glUniform2f(program.uSphereSize, -1, -1);
-		}
-		if (normals != null && (command & ENV_ATTR_LIGHTING) != 0) {
-			program.setLight(effect.isLighting ? effect.light : null);
-		} else {
-			program.setLight(null);
-		}
-		program.setToonShading(effect);
-		program.bindMatrices(mvp, mv);
+	private static void setSpriteVertex(int[] v, int i, int x, int y, int z, int q, int u, int tv) {
+		int o = i * Rasterizer.VERTEX_SIZE;
+		v[o + Rasterizer.X] = x;
+		v[o + Rasterizer.Y] = y;
+		v[o + Rasterizer.Z] = z;
+		v[o + Rasterizer.U] = u;
+		v[o + Rasterizer.V] = tv;
+		v[o + Rasterizer.Q] = q;
+	}
 
-		vertices.rewind();
-		glVertexAttribPointer(program.aPosition, 3, GL_FLOAT, false, 3 * 4, vertices);
-		glEnableVertexAttribArray(program.aPosition);
+	/**
+	 * Draws triangles or quads (A, B, C, D as triangles {A, B, C} and {A, C, D}).
+	 */
+	private void renderMesh(Texture texture, int command, int numPrimitives, int numCorners,
+							int[] vertices, int[] normals, int[] texCoords, int[] colors,
+							Effect3D effect, AffineTrans a, int blendMode) {
+		boolean perCommandColor = (command & Graphics3D.PDATA_COLOR_PER_COMMAND) != 0;
+		boolean textured = !perCommandColor && (command & Graphics3D.PDATA_TEXURE_COORD) != 0;
+		if (textured && texture == null) return;
+		if (!perCommandColor && !textured && (command & Graphics3D.PDATA_COLOR_PER_FACE) == 0) return;
+
+		int normalType = command & Graphics3D.PDATA_NORMAL_PER_VERTEX;
+		boolean lit = effect.isLighting && normalType != Graphics3D.PDATA_NORMAL_NONE
+				&& (command & Graphics3D.ENV_ATTR_LIGHTING) != 0;
+		setLight(effect);
+		Texture sphere = setSphere(effect, lit && (command & Graphics3D.PATTR_SPHERE_MAP) != 0);
+		material.set(textured ? texture : null, perCommandColor ? colors[0] : 0, blendMode,
+				textured && (command & Graphics3D.PATTR_COLORKEY) != 0, blendMode == 0);
+		material.setShading(lit, effect, sphere);
+		applyMaterial();
 
-		if (normals != null) {
-			normals.rewind();
-			glVertexAttribPointer(program.aNormal, 3, GL_FLOAT, false, 3 * 4, normals);
-			glEnableVertexAttribArray(program.aNormal);
-		} else {
-			glDisableVertexAttribArray(program.aNormal);
+		for (int i = 0; i < numPrimitives; i++) {
+			if (!perCommandColor && !textured) {
+				material.color = colors[i];
+				applyMaterial();
+			}
+			int[] v = clipPolygon;
+			int and = -1;
+			int or = 0;
+			for (int k = 0; k < numCorners; k++) {
+				int vi = i * numCorners + k;
+				int p = vi * 3;
+				int x = vertices[p];
+				int y = vertices[p + 1];
+				int z = vertices[p + 2];
+				int o = k * CLIP_SIZE;
+				int vx = ((a.m00 * x + a.m01 * y + a.m02 * z) >> 12) + a.m03;
+				int vy = ((a.m10 * x + a.m11 * y + a.m12 * z) >> 12) + a.m13;
+				int vz = ((a.m20 * x + a.m21 * y + a.m22 * z) >> 12) + a.m23;
+				v[o + CLIP_X] = vx;
+				v[o + CLIP_Y] = vy;
+				v[o + CLIP_Z] = vz;
+				int code = outcode(vx, vy, vz);
+				if ((code & OUT_CLIP) == 0 && !project(vx, vy, vz, v, o)) {
+					code |= OUT_GUARD;
+				}
+				and &= code;
+				or |= code;
+				if (lit) {
+					int n = normalType == Graphics3D.PDATA_NORMAL_PER_FACE ? i * 3 : p;
+					shadeVertex(a, normals[n] >> 6, normals[n + 1] >> 6, normals[n + 2] >> 6, v, o);
+				}
+				if (textured) {
+					v[o + Rasterizer.U] = texCoords[vi * 2];
+					v[o + Rasterizer.V] = texCoords[vi * 2 + 1];
+				}
+			}
+			if ((and & OUT_REJECT) != 0) continue;
+			if ((or & OUT_CLIP) != 0) {
+				drawClipped(numCorners, false);
+				continue;
+			}
+			drawTriangle(v, 0, CLIP_SIZE, CLIP_SIZE * 2);
+			if (numCorners == 4) {
+				drawTriangle(v, 0, CLIP_SIZE * 2, CLIP_SIZE * 3);
+			}
 		}
-
-		texCoords.rewind();
-		glVertexAttribPointer(program.aColorData, 2, GL_UNSIGNED_BYTE, false, 2, texCoords);
-		glEnableVertexAttribArray(program.aColorData);
-
-		program.enableTexUnit();
-		program.setTex(texture);
-
-		glDisable(GL_CULL_FACE);
-		int blendMode = command & PATTR_BLEND_SUB;
-		applyBlending(blendEnabled ? blendMode >> 4 : 0);
-		program.setTransparency(command & PATTR_COLORKEY);
-		glDrawArrays(GL_TRIANGLES, 0, vertices.capacity() / 3);
-		glDisableVertexAttribArray(program.aPosition);
-		glDisableVertexAttribArray(program.aColorData);
-		glDisableVertexAttribArray(program.aNormal);
-		checkGlError("glDrawArrays");
 	}
 
 	void drawCmd(Texture[] textures, int x, int y, FigureLayout layout, Effect3D effect, int[] cmds) {
-		if (COMMAND_LIST_VERSION_1_0 != cmds[0]) {
+		if (Graphics3D.COMMAND_LIST_VERSION_1_0 != cmds[0]) {
 			throw new IllegalArgumentException("Unsupported command list version: " + cmds[0]);
 		}
 		if (textures != null) {
-			this.textures = textures.clone();
+			this.textures = copyOf(textures);
 		}
 		layout = new FigureLayout(layout);
 		effect = new Effect3D(effect);
 		for (int i = 1; i < cmds.length; ) {
 			int cmd = cmds[i++];
 			switch (cmd & 0xFF000000) {
-				case COMMAND_AFFINE_INDEX:
+				case Graphics3D.COMMAND_AFFINE_INDEX:
 					layout.selectAffineTrans(cmd & 0xFFFFFF);
 					break;
-				case COMMAND_AMBIENT_LIGHT: {
+				case Graphics3D.COMMAND_AMBIENT_LIGHT: {
 					Light light = effect.getLight();
 					if (light == null) {
 						light = new Light();
 						effect.setLight(light);
 					}
-					light.setAmbientIntensity(i++);
+					light.setAmbientIntensity(cmds[i++]);
 					break;
 				}
-				case COMMAND_ATTRIBUTE:
+				case Graphics3D.COMMAND_ATTRIBUTE:
 					int params = cmd & 0xFFFFFF;
-					effect.setTransparency((params & ENV_ATTR_SEMI_TRANSPARENT) != 0);
-					effect.isLighting = (params & ENV_ATTR_LIGHTING) != 0;
-					effect.isReflection = (params & ENV_ATTR_SPHERE_MAP) != 0;
-					effect.isToonShading = (params & ENV_ATTR_TOON_SHADING) != 0;
+					effect.setTransparency((params & Graphics3D.ENV_ATTR_SEMI_TRANSPARENT) != 0);
+					effect.isLighting = (params & Graphics3D.ENV_ATTR_LIGHTING) != 0;
+					effect.isReflection = (params & Graphics3D.ENV_ATTR_SPHERE_MAP) != 0;
+					effect.isToonShading = (params & Graphics3D.ENV_ATTR_TOON_SHADING) != 0;
 					break;
-				case COMMAND_CENTER:
+				case Graphics3D.COMMAND_CENTER:
 					layout.setCenter(cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_CLIP:
-					clip.intersect(cmds[i++], cmds[i++], cmds[i++], cmds[i++]);
-					updateClip();
+				case Graphics3D.COMMAND_CLIP:
+					updateClip(cmds[i++], cmds[i++], cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_DIRECTION_LIGHT: {
+				case Graphics3D.COMMAND_DIRECTION_LIGHT: {
 					Light light = effect.getLight();
 					if (light == null) {
 						light = new Light();
 						effect.setLight(light);
 					}
-					light.getDirection().set(i++, i++, i++);
-					light.setDirIntensity(i++);
+					light.getDirection().set(cmds[i++], cmds[i++], cmds[i++]);
+					light.setDirIntensity(cmds[i++]);
 					break;
 				}
-				case COMMAND_FLUSH:
+				case Graphics3D.COMMAND_FLUSH:
 					flush();
 					break;
-				case COMMAND_NOP:
+				case Graphics3D.COMMAND_NOP:
 					i += cmd & 0xFFFFFF;
 					break;
-				case COMMAND_PARALLEL_SCALE:
+				case Graphics3D.COMMAND_PARALLEL_SCALE:
 					layout.setScale(cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_PARALLEL_SIZE:
+				case Graphics3D.COMMAND_PARALLEL_SIZE:
 					layout.setParallelSize(cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_PERSPECTIVE_FOV:
+				case Graphics3D.COMMAND_PERSPECTIVE_FOV:
 					layout.setPerspective(cmds[i++], cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_PERSPECTIVE_WH:
+				case Graphics3D.COMMAND_PERSPECTIVE_WH:
 					layout.setPerspective(cmds[i++], cmds[i++], cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_TEXTURE_INDEX:
+				case Graphics3D.COMMAND_TEXTURE_INDEX:
 					int tid = cmd & 0xFFFFFF;
 					if (tid > 0 && tid < 16) {
 						this.textureIdx = tid;
 					}
 					break;
-				case COMMAND_THRESHOLD:
+				case Graphics3D.COMMAND_THRESHOLD:
 					effect.setThreshold(cmds[i++], cmds[i++], cmds[i++]);
 					break;
-				case COMMAND_END:
+				case Graphics3D.COMMAND_END:
 					return;
 				default:
 					int type = cmd & 0x7000000;
@@ -1166,15 +1589,15 @@ class Render {
 					System.arraycopy(cmds, i, vert, 0, len);
 					i += len;
 					int[] norm;
-					if (type == PRIMITVE_TRIANGLES || type == PRIMITVE_QUADS) {
-						switch (cmd & PDATA_NORMAL_PER_VERTEX) {
-							case PDATA_NORMAL_PER_FACE:
+					if (type == Graphics3D.PRIMITVE_TRIANGLES || type == Graphics3D.PRIMITVE_QUADS) {
+						switch (cmd & Graphics3D.PDATA_NORMAL_PER_VERTEX) {
+							case Graphics3D.PDATA_NORMAL_PER_FACE:
 								len = num * 3;
 								norm = new int[len];
 								System.arraycopy(cmds, i, norm, 0, len);
 								i += len;
 								break;
-							case PDATA_NORMAL_PER_VERTEX:
+							case Graphics3D.PDATA_NORMAL_PER_VERTEX:
 								norm = new int[len];
 								System.arraycopy(cmds, i, norm, 0, len);
 								i += len;
@@ -1186,24 +1609,24 @@ class Render {
 					} else norm = EMPTY_ARRAY;
 					int[] texCoord;
 					int[] col;
-					if ((cmd & PDATA_COLOR_PER_COMMAND) != 0) {
+					if ((cmd & Graphics3D.PDATA_COLOR_PER_COMMAND) != 0) {
 						col = new int[]{cmds[i++]};
-					} else if ((cmd & PDATA_COLOR_PER_FACE) != 0) {
+					} else if ((cmd & Graphics3D.PDATA_COLOR_PER_FACE) != 0) {
 						col = new int[num];
 						System.arraycopy(cmds, i, col, 0, num);
 						i += num;
 					} else {
 						col = EMPTY_ARRAY;
 					}
-					if ((cmd & PDATA_TEXURE_COORD) != 0) {
+					if ((cmd & Graphics3D.PDATA_TEXURE_COORD) != 0) {
 						int tcLen;
-						if (type == PRIMITVE_POINT_SPRITES) {
-							switch (cmd & PDATA_POINT_SPRITE_PARAMS_PER_VERTEX) {
-								case PDATA_POINT_SPRITE_PARAMS_PER_CMD:
+						if (type == Graphics3D.PRIMITVE_POINT_SPRITES) {
+							switch (cmd & Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_VERTEX) {
+								case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_CMD:
 									tcLen = 8;
 									break;
-								case PDATA_POINT_SPRITE_PARAMS_PER_FACE:
-								case PDATA_POINT_SPRITE_PARAMS_PER_VERTEX:
+								case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_FACE:
+								case Graphics3D.PDATA_POINT_SPRITE_PARAMS_PER_VERTEX:
 									tcLen = num * 8;
 									break;
 								default:
@@ -1223,61 +1646,50 @@ class Render {
 						FigureLayout layoutCopy = new FigureLayout(layout);
 						layoutCopy.centerX += x;
 						layoutCopy.centerY += y;
-						Texture finalTex = getTexture();
-						stack.add(new RenderNode() {
-							@Override
-							public void run() {
-								renderPrimitives(finalTex, cmd, num, vert,
-										norm, texCoord, col, effectCopy, layoutCopy);
-							}
-						});
+						stack.addElement(new PrimitiveNode(this, getTexture(), cmd, num, vert,
+								norm, texCoord, col, effectCopy, layoutCopy));
 					}
 					break;
 			}
 		}
 	}
 
-	private void updateClip() {
-		bindEglContext();
-		Rect clip = this.clip;
-		int l = clip.left;
-		int t = clip.top;
-		int r = clip.right;
-		int b = clip.bottom;
-		if (l == 0 && t == 0 && r == width && b == height) {
-			glDisable(GL_SCISSOR_TEST);
-		} else {
-			glEnable(GL_SCISSOR_TEST);
-			glScissor(l, t, r - l, b - t);
-		}
-		releaseEglContext();
+	private void updateClip(int l, int t, int r, int b) {
+		if (l > clipLeft) clipLeft = l;
+		if (t > clipTop) clipTop = t;
+		if (r < clipRight) clipRight = r;
+		if (b < clipBottom) clipBottom = b;
+		if (clipRight < clipLeft) clipRight = clipLeft;
+		if (clipBottom < clipTop) clipBottom = clipTop;
+		rasterizer.setClip(clipLeft, clipTop, clipRight, clipBottom);
+		material.setClip(clipLeft, clipTop, clipRight, clipBottom);
 	}
 
 	private int sizeOf(int type) {
 		switch (type) {
-			case PRIMITVE_POINTS:
-			case PRIMITVE_POINT_SPRITES: return 1;
-			case PRIMITVE_LINES:         return 2;
-			case PRIMITVE_TRIANGLES:     return 3;
-			case PRIMITVE_QUADS:         return 4;
-			default:                     return 0;
+			case Graphics3D.PRIMITVE_POINTS:
+			case Graphics3D.PRIMITVE_POINT_SPRITES: return 1;
+			case Graphics3D.PRIMITVE_LINES:         return 2;
+			case Graphics3D.PRIMITVE_TRIANGLES:     return 3;
+			case Graphics3D.PRIMITVE_QUADS:         return 4;
+			default:                                return 0;
 		}
 	}
 
 	synchronized void postFigure(Figure figure, int x, int y, FigureLayout layout, Effect3D effect) {
 		Texture[] ta = figure.textures;
 		if (ta != null) {
-			textures = ta.clone();
+			textures = copyOf(ta);
 		}
 		FigureNode rn;
 		if (figure.stack.empty()) {
 			rn = new FigureNode(this, figure, x, y, layout, effect);
 		} else {
-			rn = figure.stack.pop();
+			rn = (FigureNode) figure.stack.pop();
 			rn.setData(this, x, y, layout, effect);
 		}
-		rn.textures = textures == null ? null : textures.clone();
-		stack.add(rn);
+		rn.textures = textures == null ? null : copyOf(textures);
+		stack.addElement(rn);
 	}
 
 	synchronized void postPrimitives(Texture texture, int x, int y, FigureLayout layout, Effect3D effect,
@@ -1288,57 +1700,18 @@ class Render {
 		layoutCopy.centerX += x;
 		layoutCopy.centerY += y;
 		setTexture(texture);
-		Texture finalTex = getTexture();
-		stack.add(new RenderNode() {
-			@Override
-			public void run() {
-				renderPrimitives(finalTex, command, numPrimitives, vertexCoords,
-						normals, textureCoords, colors, effectCopy, layoutCopy);
-			}
-		});
+		stack.addElement(new PrimitiveNode(this, getTexture(), command, numPrimitives, vertexCoords,
+				normals, textureCoords, colors, effectCopy, layoutCopy));
 	}
 
 	synchronized void drawFigure(Figure figure, int x, int y, FigureLayout layout, Effect3D effect) {
-		bindEglContext();
-		if (!backCopied && preCopy2D) copy2d(true);
-		try {
-			flushStep = 1;
-			for (int i = 0, stackSize = stack.size(); i < stackSize; i++) {
-				RenderNode r = stack.get(i);
-				r.run();
-			}
-			Texture tex = figure.getTexture();
-			setTexture(tex);
-			Model data = figure.data;
-			FloatBuffer vertices = figure.getVertexData();
-			FloatBuffer normals = figure.getNormalsData();
-			renderFigure(data, x, y, layout, textures, effect, vertices, normals);
-			flushStep = 2;
-			for (int i = 0, stackSize = stack.size(); i < stackSize; i++) {
-				RenderNode r = stack.get(i);
-				r.run();
-				r.recycle();
-			}
-			renderFigure(data, x, y, layout, textures, effect, vertices, normals);
-			glDisable(GL_BLEND);
-			glDepthMask(true);
-			glClear(GL_DEPTH_BUFFER_BIT);
-		} finally {
-			stack.clear();
-			releaseEglContext();
-		}
-	}
-
-	void bindEglContext() {
-		((EGL10) EGLContext.getEGL()).eglMakeCurrent(eglDisplay, eglWindowSurface, eglWindowSurface, eglContext);
-	}
-
-	void releaseEglContext() {
-		((EGL10) EGLContext.getEGL()).eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+		// drawn together with the queue, so it takes part in the depth ordering
+		postFigure(figure, x, y, layout, effect);
+		flush();
 	}
 
 	void reset() {
-		stack.clear();
+		stack.removeAllElements();
 	}
 
 	void setTexture(Texture texture) {
@@ -1349,4 +1722,10 @@ class Render {
 	Texture getTexture() {
 		return textures == null ? null : textureIdx < textures.length ? textures[textureIdx] : null;
 	}
+
+	private static Texture[] copyOf(Texture[] src) {
+		Texture[] copy = new Texture[src.length];
+		System.arraycopy(src, 0, copy, 0, src.length);
+		return copy;
+	}
 }
@@ -16,19 +16,27 @@
 
 package com.mascotcapsule.micro3d.v3;
 
+import java.util.Stack;
+
 abstract class RenderNode implements Runnable {
+	/** View space depth of the node center, nodes are drawn in increasing order. */
+	int depth;
+
 	protected void recycle() {}
 
 	static final class FigureNode extends RenderNode {
-		private final Stack<FigureNode> stack;
+		private final Stack stack;
 		private Render render;
 		private Effect3D effect;
 		Texture[] textures;
 		private FigureLayout layout;
 		private final short[] vertices;
+		private final int[] faceNormals;
+		private final int[] bounds;
 		private final Model data;
 		private final Figure figure;
 		private final byte[] normals;
+		private int pattern;
 		private int x;
 		private int y;
 
@@ -36,9 +44,11 @@ abstract class RenderNode implements Runnable {
 			stack = figure.stack;
 			data = figure.data;
 			this.figure = figure;
-			vertices = new short[data.numVertices * 3];
+			vertices = new short[data.vertices.length];
+			faceNormals = new int[data.faceNormals.length];
+			bounds = new int[data.bounds.length];
 			if (data.originalNormals != null) {
-				normals = new byte[data.numVertices * 3];
+				normals = new byte[data.normals.length];
 			} else {
 				normals = null;
 			}
@@ -59,20 +69,59 @@ abstract class RenderNode implements Runnable {
 			}
 			this.x = x;
 			this.y = y;
+			depth = this.layout.affine.m23;
 			synchronized (figure) {
-				Utils.fillBuffer(vertices, data.vertices, data.indices);
+				pattern = figure.currentPattern;
+				System.arraycopy(data.vertices, 0, vertices, 0, vertices.length);
+				System.arraycopy(data.faceNormals, 0, faceNormals, 0, faceNormals.length);
+				System.arraycopy(data.bounds, 0, bounds, 0, bounds.length);
 				if (normals != null) {
-					Utils.fillBuffer(normals, data.normals, data.indices);
+					System.arraycopy(data.normals, 0, normals, 0, normals.length);
 				}
 			}
 		}
 
 		public void run() {
-			render.renderFigure(data, x, y, layout, textures, effect, vertices, normals);
+			render.renderFigure(data, x, y, layout, textures, effect, vertices, normals, faceNormals,
+					bounds, pattern);
 		}
 
 		protected void recycle() {
 			stack.push(this);
 		}
 	}
+
+	static final class PrimitiveNode extends RenderNode {
+		private final Render render;
+		private final Texture texture;
+		private final int command;
+		private final int numPrimitives;
+		private final int[] vertices;
+		private final int[] normals;
+		private final int[] texCoords;
+		private final int[] colors;
+		private final Effect3D effect;
+		private final FigureLayout layout;
+
+		PrimitiveNode(Render render, Texture texture, int command, int numPrimitives,
+					  int[] vertices, int[] normals, int[] texCoords, int[] colors,
+					  Effect3D effect, FigureLayout layout) {
+			this.render = render;
+			this.texture = texture;
+			this.command = command;
+			this.numPrimitives = numPrimitives;
+			this.vertices = vertices;
+			this.normals = normals;
+			this.texCoords = texCoords;
+			this.colors = colors;
+			this.effect = effect;
+			this.layout = layout;
+			depth = layout.affine.m23;
+		}
+
+		public void run() {
+			render.renderPrimitives(texture, command, numPrimitives, vertices,
+					normals, texCoords, colors, effect, layout);
+		}
+	}
 }
@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Span buffer hidden surface removal.
+ * <p>
+ * Spans of opaque triangles are inserted into per scanline lists sorted by x,
+ * cutting away the parts hidden by nearer spans. Only the visible spans are
+ * shaded, once per pixel. Color keyed triangles only insert the runs of their
+ * opaque texels. Blended triangles are drawn afterwards where they are in front
+ * of the opaque spans.
+ */
+final class SpanBuffer {
+	private int top;
+	private int rows;
+	private int[] rowHead = new int[0];
+
+	// span pool, z is the depth at the center of the first pixel, 16.16
+	private int[] spanX0 = new int[256];
+	private int[] spanX1 = new int[256];
+	private int[] spanY = new int[256];
+	private int[] spanZ = new int[256];
+	private int[] spanDz = new int[256];
+	private int[] spanTri = new int[256];
+	private int[] spanNext = new int[256];
+	private int count;
+
+	// visible spans of each triangle
+	private int[] triHead = new int[64];
+	private int[] spanLink = new int[256];
+
+	private int owner;
+	private boolean occlude;
+
+	void render(TriangleQueue queue, Rasterizer rasterizer, int top, int bottom) {
+		int size = queue.size;
+		if (size == 0 || top >= bottom) return;
+		this.top = top;
+		int rows = this.rows = bottom - top;
+		if (rowHead.length < rows) {
+			rowHead = new int[rows];
+		}
+		for (int i = 0; i < rows; i++) {
+			rowHead[i] = -1;
+		}
+		count = 0;
+
+		int[] v = queue.vertices;
+		int[] materialIndex = queue.materialIndex;
+		Material[] materials = queue.materials;
+		Material current = null;
+		rasterizer.spanSink = this;
+		try {
+			occlude = false;
+			for (int t = 0; t < size; t++) {
+				Material m = materials[materialIndex[t]];
+				if (!m.depthWrite) continue;
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+					rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+				}
+				owner = t;
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				rasterizer.fillTriangle(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+			}
+
+			rasterizer.spanSink = null;
+			drawVisible(queue, rasterizer);
+
+			rasterizer.spanSink = this;
+			occlude = true;
+			current = null;
+			for (int t = 0; t < size; t++) {
+				Material m = materials[materialIndex[t]];
+				if (m.depthWrite) continue;
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+					rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+				}
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				rasterizer.fillTriangle(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+			}
+		} finally {
+			rasterizer.spanSink = null;
+		}
+	}
+
+	/**
+	 * Shades the visible spans, grouped by triangle so each plane is set up once.
+	 */
+	private void drawVisible(TriangleQueue queue, Rasterizer rasterizer) {
+		int size = queue.size;
+		if (triHead.length < size) {
+			triHead = new int[queue.materialIndex.length];
+		}
+		int[] triHead = this.triHead;
+		for (int t = 0; t < size; t++) {
+			triHead[t] = -1;
+		}
+		int[] spanTri = this.spanTri;
+		int[] spanLink = this.spanLink;
+		int[] spanNext = this.spanNext;
+		int[] rowHead = this.rowHead;
+		for (int row = 0, rows = this.rows; row < rows; row++) {
+			for (int s = rowHead[row]; s >= 0; s = spanNext[s]) {
+				int t = spanTri[s];
+				spanLink[s] = triHead[t];
+				triHead[t] = s;
+			}
+		}
+
+		int[] v = queue.vertices;
+		int[] materialIndex = queue.materialIndex;
+		Material[] materials = queue.materials;
+		Material current = null;
+		for (int t = 0; t < size; t++) {
+			int s = triHead[t];
+			if (s < 0) continue;
+			Material m = materials[materialIndex[t]];
+			if (m != current) {
+				current = m;
+				rasterizer.setMaterial(m);
+			}
+			int o = t * TriangleQueue.TRIANGLE_SIZE;
+			if (!rasterizer.prepare(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2)) {
+				continue;
+			}
+			for (; s >= 0; s = spanLink[s]) {
+				rasterizer.fillRow(spanX0[s], spanY[s], spanX1[s] - spanX0[s]);
+			}
+		}
+	}
+
+	/**
+	 * Called by the rasterizer for every span of the current triangle.
+	 *
+	 * @param z  depth at the center of pixel x0, 16.16
+	 * @param dz depth step per pixel, 16.16
+	 */
+	void addSpan(Rasterizer rasterizer, int y, int x0, int x1, int z, int dz) {
+		if (occlude) {
+			drawUnoccluded(rasterizer, y, x0, x1, z, dz);
+		} else {
+			insert(y, x0, x1, z, dz);
+		}
+	}
+
+	private void insert(int y, int x0, int x1, int z, int dz) {
+		int row = y - top;
+		int start = x0;
+		int prev = -1;
+		int cur = rowHead[row];
+		while (x0 < x1) {
+			while (cur >= 0 && spanX1[cur] <= x0) {
+				prev = cur;
+				cur = spanNext[cur];
+			}
+			if (cur < 0 || spanX0[cur] >= x1) {
+				link(newSpan(y, x0, x1, depthAt(z, dz, start, x0), dz, owner), prev, cur, row);
+				return;
+			}
+			if (spanX0[cur] > x0) {
+				int e = spanX0[cur];
+				prev = link(newSpan(y, x0, e, depthAt(z, dz, start, x0), dz, owner), prev, cur, row);
+				x0 = e;
+				continue;
+			}
+			int e = Math.min(x1, spanX1[cur]);
+			long d0 = depthAt(z, dz, start, x0) - depthAt(spanZ[cur], spanDz[cur], spanX0[cur], x0);
+			long d1 = depthAt(z, dz, start, e - 1) - depthAt(spanZ[cur], spanDz[cur], spanX0[cur], e - 1);
+			if (d0 < 0 != d1 < 0) {
+				// the planes cross, handle the overlap up to the crossing first
+				e = x0 + (int) (d0 * (e - 1 - x0) / (d0 - d1)) + 1;
+			}
+			if (d0 >= 0) {
+				// hidden by the old span
+				x0 = e;
+				if (e == spanX1[cur]) {
+					prev = cur;
+					cur = spanNext[cur];
+				}
+				continue;
+			}
+			if (spanX0[cur] < x0) {
+				// keep the left part of the old span
+				int s = newSpan(y, spanX0[cur], x0, spanZ[cur], spanDz[cur], spanTri[cur]);
+				prev = link(s, prev, cur, row);
+				cutLeft(cur, x0);
+			}
+			if (spanX1[cur] > e) {
+				cutLeft(cur, e);
+				prev = link(newSpan(y, x0, e, depthAt(z, dz, start, x0), dz, owner), prev, cur, row);
+			} else {
+				// the old span is hidden entirely, reuse it
+				spanX0[cur] = x0;
+				spanZ[cur] = (int) depthAt(z, dz, start, x0);
+				spanDz[cur] = dz;
+				spanTri[cur] = owner;
+				prev = cur;
+				cur = spanNext[cur];
+			}
+			x0 = e;
+		}
+	}
+
+	private void drawUnoccluded(Rasterizer rasterizer, int y, int x0, int x1, int z, int dz) {
+		int start = x0;
+		int cur = rowHead[y - top];
+		while (x0 < x1) {
+			while (cur >= 0 && spanX1[cur] <= x0) {
+				cur = spanNext[cur];
+			}
+			if (cur < 0 || spanX0[cur] >= x1) {
+				rasterizer.fillRow(x0, y, x1 - x0);
+				return;
+			}
+			if (spanX0[cur] > x0) {
+				rasterizer.fillRow(x0, y, spanX0[cur] - x0);
+				x0 = spanX0[cur];
+				continue;
+			}
+			int e = Math.min(x1, spanX1[cur]);
+			long d0 = depthAt(z, dz, start, x0) - depthAt(spanZ[cur], spanDz[cur], spanX0[cur], x0);
+			long d1 = depthAt(z, dz, start, e - 1) - depthAt(spanZ[cur], spanDz[cur], spanX0[cur], e - 1);
+			if (d0 < 0 != d1 < 0) {
+				e = x0 + (int) (d0 * (e - 1 - x0) / (d0 - d1)) + 1;
+			}
+			if (d0 < 0) {
+				rasterizer.fillRow(x0, y, e - x0);
+			}
+			x0 = e;
+		}
+	}
+
+	private static long depthAt(int z, int dz, int x0, int x) {
+		return z + (long) dz * (x - x0);
+	}
+
+	private void cutLeft(int s, int x) {
+		spanZ[s] = (int) depthAt(spanZ[s], spanDz[s], spanX0[s], x);
+		spanX0[s] = x;
+	}
+
+	private int link(int s, int prev, int next, int row) {
+		spanNext[s] = next;
+		if (prev < 0) {
+			rowHead[row] = s;
+		} else {
+			spanNext[prev] = s;
+		}
+		return s;
+	}
+
+	private int newSpan(int y, int x0, int x1, long z, int dz, int tri) {
+		if (count == spanX0.length) {
+			int n = count * 2;
+			spanX0 = grow(spanX0, n);
+			spanX1 = grow(spanX1, n);
+			spanY = grow(spanY, n);
+			spanZ = grow(spanZ, n);
+			spanDz = grow(spanDz, n);
+			spanTri = grow(spanTri, n);
+			spanNext = grow(spanNext, n);
+			spanLink = grow(spanLink, n);
+		}
+		int s = count++;
+		spanX0[s] = x0;
+		spanX1[s] = x1;
+		spanY[s] = y;
+		spanZ[s] = (int) z;
+		spanDz[s] = dz;
+		spanTri[s] = tri;
+		return s;
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] tmp = new int[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+}
@@ -26,9 +26,31 @@ public class Texture {
 
 	boolean isSphere;
 
-	private int[] palette;
-	private byte[] index;
+	int[] palette;
+	/**
+	 * Palette indices with rows padded to a power of two, so texel lookups can wrap
+	 * coordinates with {@link #uMask}/{@link #vMask} and address rows with {@link #shift}.
+	 */
+	byte[] index;
 	int width, height;
+	int shift;
+	int uMask, vMask;
+
+	/** Light level 0 - 255 shifted by this selects one of the lit palettes. */
+	static final int LIGHT_SHIFT = 3;
+	static final int LIGHT_LEVELS = 256 >> LIGHT_SHIFT;
+	private int[] pixelPalette;
+	private int[] litPalette;
+	// toon palettes of the last effects, most recently used first
+	private static final int TOON_CACHE = 4;
+	private final int[][] toonPalettes = new int[TOON_CACHE][];
+	private final int[] toonLow = new int[TOON_CACHE];
+	private final int[] toonHigh = new int[TOON_CACHE];
+	private byte[] keyRuns;
+
+	/** Size of a sphere coordinate table, indexed by a normal component -64 - 64 plus 64. */
+	static final int SPHERE_TABLE = 129;
+	private int[] sphereCoords;
 
 	public Texture(byte[] b, boolean isForModel) {
 		if (b == null) {
@@ -38,6 +60,22 @@ public class Texture {
 		prepare(b);
 	}
 
+	/**
+	 * Wraps generated palette indices, the sizes must be powers of two.
+	 */
+	Texture(byte[] index, int[] palette, int width, int height, boolean isForModel) {
+		isSphere = !isForModel;
+		this.index = index;
+		this.palette = palette;
+		this.width = width;
+		this.height = height;
+		while (1 << shift < width) {
+			shift++;
+		}
+		uMask = width - 1;
+		vMask = height - 1;
+	}
+
 	public Texture(String name, boolean isForModel) throws IOException {
 		this(getData(name), isForModel);
 	}
@@ -55,6 +93,113 @@ public class Texture {
 		return b;
 	}
 
+	/**
+	 * @return the palette as pixels of the color buffer, see {@link Rasterizer#pixel}
+	 */
+	synchronized int[] getPixelPalette() {
+		if (pixelPalette == null) {
+			int[] pixels = new int[256];
+			for (int i = 0; i < 256; i++) {
+				// sphere maps are added to the pixels, their black must stay 0
+				pixels[i] = isSphere && Rasterizer.RGB565 ? Rasterizer.to565(palette[i]) : Rasterizer.pixel(palette[i]);
+			}
+			pixelPalette = pixels;
+		}
+		return pixelPalette;
+	}
+
+	/**
+	 * @return LIGHT_LEVELS palettes of 256 opaque pixels, scaled by increasing light
+	 */
+	synchronized int[] getLitPalette() {
+		if (litPalette == null) {
+			int[] lit = new int[LIGHT_LEVELS << 8];
+			for (int level = 0; level < LIGHT_LEVELS; level++) {
+				int l = (level + 1) << LIGHT_SHIFT;
+				for (int i = 0; i < 256; i++) {
+					lit[level << 8 | i] = Rasterizer.pixel(Rasterizer.shade(palette[i], l));
+				}
+			}
+			litPalette = lit;
+		}
+		return litPalette;
+	}
+
+	/**
+	 * @return the palette scaled by the low toon level followed by the one for the high level
+	 */
+	synchronized int[] getToonPalette(int low, int high) {
+		int[][] palettes = toonPalettes;
+		int i = 0;
+		while (i < TOON_CACHE - 1 && palettes[i] != null && (toonLow[i] != low || toonHigh[i] != high)) {
+			i++;
+		}
+		int[] toon = palettes[i];
+		if (toon == null || toonLow[i] != low || toonHigh[i] != high) {
+			// the last one is dropped
+			toon = new int[512];
+			for (int k = 0; k < 256; k++) {
+				toon[k] = Rasterizer.pixel(Rasterizer.shade(palette[k], low + 1));
+				toon[256 | k] = Rasterizer.pixel(Rasterizer.shade(palette[k], high + 1));
+			}
+		}
+		System.arraycopy(palettes, 0, palettes, 1, i);
+		System.arraycopy(toonLow, 0, toonLow, 1, i);
+		System.arraycopy(toonHigh, 0, toonHigh, 1, i);
+		palettes[0] = toon;
+		toonLow[0] = low;
+		toonHigh[0] = high;
+		return toon;
+	}
+
+	/**
+	 * Runs of key colored (index 0) and opaque texels along the rows.
+	 *
+	 * @return for every texel, the number of texels from it to the end of its run
+	 * within the row, at most 255
+	 */
+	synchronized byte[] getKeyRuns() {
+		if (keyRuns == null) {
+			byte[] index = this.index;
+			int stride = uMask + 1;
+			byte[] runs = new byte[index.length];
+			for (int row = 0; row < index.length; row += stride) {
+				int run = 0;
+				boolean key = false;
+				for (int i = row + stride - 1; i >= row; i--) {
+					boolean k = index[i] == 0;
+					run = k == key && run < 255 ? run + 1 : 1;
+					key = k;
+					runs[i] = (byte) run;
+				}
+			}
+			keyRuns = runs;
+		}
+		return keyRuns;
+	}
+
+	/**
+	 * Maps view space normal components to texel coordinates of this sphere map.
+	 *
+	 * @return u coordinates of x components followed by v coordinates of y components
+	 */
+	synchronized int[] getSphereCoords() {
+		if (sphereCoords == null) {
+			int[] table = new int[SPHERE_TABLE * 2];
+			for (int n = 0; n < SPHERE_TABLE; n++) {
+				table[n] = sphereCoord(n, width);
+				table[SPHERE_TABLE + n] = sphereCoord(n, height);
+			}
+			sphereCoords = table;
+		}
+		return sphereCoords;
+	}
+
+	private static int sphereCoord(int n, int size) {
+		int c = n * size >> 7;
+		return c < size ? c : size - 1;
+	}
+
 	private void prepare(byte[] bytes) {
 		if (bytes[0] != 'B' || bytes[1] != 'M') {
 			throw new RuntimeException("Not a BMP!");
@@ -96,24 +241,40 @@ public class Texture {
 			throw new RuntimeException("Unsupported BMP format: bpp = " + bpp);
 		}
 		int paletteOffset = bInfoSize + BMP_FILE_HEADER_SIZE;
-		// get first color in palette
+		int paletteEntrySize = bInfoSize == BMP_VERSION_CORE ? 3 : 4;
 
-		palette = new int[paletteSize];
-		for (int i = 0; i < palette.length; i++) {
-			palette[i] = bytes[paletteOffset++] & 0xFF | (bytes[paletteOffset++] & 0xFF) << 8
-					| (bytes[paletteOffset++] & 0xFF) << 16;
-			paletteOffset++;
+		// always 256 entries, so any index byte is a valid lookup
+		palette = new int[256];
+		for (int i = 0; i < paletteSize; i++) {
+			palette[i] = bytes[paletteOffset] & 0xFF | (bytes[paletteOffset + 1] & 0xFF) << 8
+					| (bytes[paletteOffset + 2] & 0xFF) << 16;
+			paletteOffset += paletteEntrySize;
 		}
-		
-		paletteOffset = bInfoSize + BMP_FILE_HEADER_SIZE;
-		// get first color in palette
-		
-		index = new byte[width * height];
-		
-		for(int i=0; i<index.length; i++) {
-			int x = i % width;
-			int y = height - (i / width) - 1;
-			index[x + y * width] = bytes[paletteOffset++];
+
+		int dataOffset = bytes[10] & 0xFF | (bytes[11] & 0xFF) << 8
+				| (bytes[12] & 0xFF) << 16 | (bytes[13] & 0xFF) << 24;
+		int rowSize = (width + 3) & ~3;
+
+		int stride = 1;
+		while (stride < width) {
+			stride <<= 1;
+			shift++;
+		}
+		int rows = 1;
+		while (rows < height) {
+			rows <<= 1;
+		}
+		uMask = stride - 1;
+		vMask = rows - 1;
+
+		// BMP rows are stored bottom-up, padding rows and columns repeat the image
+		index = new byte[stride * rows];
+		for (int y = 0; y < rows; y++) {
+			int src = dataOffset + (height - 1 - y % height) * rowSize;
+			int dst = y << shift;
+			for (int x = 0; x < stride; x++) {
+				index[dst + x] = bytes[src + x % width];
+			}
 		}
 	}
 }
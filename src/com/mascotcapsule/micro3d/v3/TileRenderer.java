@@ -0,0 +1,295 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Bins queued triangles into screen tiles and rasterizes them tile by tile,
+ * keeping color and depth of the current tile in small scratch buffers.
+ * <p>
+ * Tiles cover disjoint pixels and keep the submission order of their triangles,
+ * so they may be drawn by several workers without changing the result.
+ */
+final class TileRenderer {
+	static final int TILE_SHIFT = 5;
+	static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	private final Worker[] workers;
+	private int[][] bins = new int[0][];
+	private int[] binSizes = new int[0];
+	private int tilesX;
+	private int tilesY;
+
+	// current job
+	private TriangleQueue queue;
+	private int[] colorBuffer;
+	private short[] colorBuffer565;
+	private int stride;
+	private int left;
+	private int top;
+	private int right;
+	private int bottom;
+	private int nextTile;
+	private int generation;
+	private int busy;
+	// RuntimeException or Error thrown by a worker
+	private Throwable failure;
+	private boolean stopped;
+
+	/**
+	 * @param threads number of threads drawing tiles, including the calling one
+	 */
+	TileRenderer(int threads) {
+		if (threads < 1) threads = 1;
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+		}
+		for (int i = 1; i < threads; i++) {
+			new Thread(workers[i], "micro3d-tile-" + i).start();
+		}
+	}
+
+	int getThreads() {
+		return workers.length;
+	}
+
+	/**
+	 * Stops the worker threads once they finish the current job. The renderer
+	 * must not be used afterwards.
+	 */
+	synchronized void shutdown() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Draws all triangles of the queue into the color buffer, limited to the given bounds.
+	 *
+	 * @param colorBuffer565 color buffer used instead of colorBuffer when Rasterizer.RGB565 is set
+	 */
+	void render(TriangleQueue queue, int[] colorBuffer, short[] colorBuffer565, int stride,
+				int left, int top, int right, int bottom) {
+		if (queue.isEmpty() || left >= right || top >= bottom) return;
+		bin(queue, left, top, right, bottom);
+		synchronized (this) {
+			this.queue = queue;
+			this.colorBuffer = colorBuffer;
+			this.colorBuffer565 = colorBuffer565;
+			this.stride = stride;
+			this.left = left;
+			this.top = top;
+			this.right = right;
+			this.bottom = bottom;
+			nextTile = 0;
+			failure = null;
+			busy = workers.length - 1;
+			if (busy > 0) {
+				generation++;
+				notifyAll();
+			}
+		}
+		try {
+			workers[0].drawTiles();
+		} finally {
+			synchronized (this) {
+				boolean interrupted = false;
+				while (busy > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				this.queue = null;
+				this.colorBuffer = null;
+				this.colorBuffer565 = null;
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw (RuntimeException) failure;
+		}
+	}
+
+	private void bin(TriangleQueue queue, int left, int top, int right, int bottom) {
+		tilesX = (right + TILE_SIZE - 1) >> TILE_SHIFT;
+		tilesY = (bottom + TILE_SIZE - 1) >> TILE_SHIFT;
+		int count = tilesX * tilesY;
+		if (bins.length < count) {
+			int[][] tmp = new int[count][];
+			System.arraycopy(bins, 0, tmp, 0, bins.length);
+			bins = tmp;
+			binSizes = new int[count];
+		}
+		int[][] bins = this.bins;
+		int[] binSizes = this.binSizes;
+		for (int i = 0; i < count; i++) {
+			binSizes[i] = 0;
+		}
+
+		int[] v = queue.vertices;
+		int[] materialIndex = queue.materialIndex;
+		Material[] materials = queue.materials;
+		for (int t = 0, size = queue.size; t < size; t++) {
+			int o = t * TriangleQueue.TRIANGLE_SIZE;
+			int x0 = v[o + Rasterizer.X];
+			int y0 = v[o + Rasterizer.Y];
+			int x1 = v[o + Rasterizer.VERTEX_SIZE + Rasterizer.X];
+			int y1 = v[o + Rasterizer.VERTEX_SIZE + Rasterizer.Y];
+			int x2 = v[o + Rasterizer.VERTEX_SIZE * 2 + Rasterizer.X];
+			int y2 = v[o + Rasterizer.VERTEX_SIZE * 2 + Rasterizer.Y];
+			Material m = materials[materialIndex[t]];
+			int minX = Math.max(Math.max(Math.min(x0, Math.min(x1, x2)) >> 16, m.clipLeft), left);
+			int minY = Math.max(Math.max(Math.min(y0, Math.min(y1, y2)) >> 16, m.clipTop), top);
+			int maxX = Math.min(Math.min((Math.max(x0, Math.max(x1, x2)) >> 16) + 1, m.clipRight), right);
+			int maxY = Math.min(Math.min((Math.max(y0, Math.max(y1, y2)) >> 16) + 1, m.clipBottom), bottom);
+			if (minX >= maxX || minY >= maxY) continue;
+			int tx0 = minX >> TILE_SHIFT;
+			int tx1 = (maxX - 1) >> TILE_SHIFT;
+			int ty1 = (maxY - 1) >> TILE_SHIFT;
+			for (int ty = minY >> TILE_SHIFT; ty <= ty1; ty++) {
+				for (int tx = tx0; tx <= tx1; tx++) {
+					int tile = ty * tilesX + tx;
+					int[] bin = bins[tile];
+					int n = binSizes[tile];
+					if (bin == null) {
+						bin = bins[tile] = new int[64];
+					} else if (n == bin.length) {
+						int[] tmp = new int[n * 2];
+						System.arraycopy(bin, 0, tmp, 0, n);
+						bin = bins[tile] = tmp;
+					}
+					bin[n] = t;
+					binSizes[tile] = n + 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return index of the next tile having triangles, or -1 when all are taken
+	 */
+	private synchronized int takeTile() {
+		int count = tilesX * tilesY;
+		int[] binSizes = this.binSizes;
+		while (nextTile < count) {
+			int tile = nextTile++;
+			if (binSizes[tile] != 0) {
+				return tile;
+			}
+		}
+		return -1;
+	}
+
+	private final class Worker implements Runnable {
+		private final Rasterizer rasterizer = new Rasterizer();
+		private final int[] tileColor = Rasterizer.RGB565 ? null : new int[TILE_SIZE * TILE_SIZE];
+		private final short[] tileColor565 = Rasterizer.RGB565 ? new short[TILE_SIZE * TILE_SIZE] : null;
+		private final short[] tileDepth = new short[TILE_SIZE * TILE_SIZE];
+
+		public void run() {
+			int seen = 0;
+			while (true) {
+				synchronized (TileRenderer.this) {
+					while (generation == seen && !stopped) {
+						try {
+							TileRenderer.this.wait();
+						} catch (InterruptedException e) {
+							// only shutdown ends a worker, render counts on every one of them
+						}
+					}
+					if (stopped) return;
+					seen = generation;
+				}
+				try {
+					drawTiles();
+				} catch (Throwable e) {
+					synchronized (TileRenderer.this) {
+						failure = e;
+					}
+				} finally {
+					synchronized (TileRenderer.this) {
+						busy--;
+						TileRenderer.this.notifyAll();
+					}
+				}
+			}
+		}
+
+		void drawTiles() {
+			int tile;
+			while ((tile = takeTile()) >= 0) {
+				int tx = tile % tilesX;
+				int ty = tile / tilesX;
+				int x0 = Math.max(tx << TILE_SHIFT, left);
+				int y0 = Math.max(ty << TILE_SHIFT, top);
+				int x1 = Math.min((tx + 1) << TILE_SHIFT, right);
+				int y1 = Math.min((ty + 1) << TILE_SHIFT, bottom);
+				drawTile(bins[tile], binSizes[tile], x0, y0, x1, y1);
+			}
+		}
+
+		private void drawTile(int[] bin, int binSize, int x0, int y0, int x1, int y1) {
+			int stride = TileRenderer.this.stride;
+			int w = x1 - x0;
+			int h = y1 - y0;
+			// the tile buffer matches the color buffer type, so rows are copied as they are
+			Object colorBuffer = Rasterizer.RGB565
+					? (Object) TileRenderer.this.colorBuffer565 : TileRenderer.this.colorBuffer;
+			Object color = Rasterizer.RGB565 ? (Object) tileColor565 : tileColor;
+			short[] depth = tileDepth;
+			for (int y = 0; y < h; y++) {
+				System.arraycopy(colorBuffer, (y0 + y) * stride + x0, color, y * TILE_SIZE, w);
+				for (int i = y * TILE_SIZE, end = i + w; i < end; i++) {
+					depth[i] = Rasterizer.DEPTH_FAR;
+				}
+			}
+
+			Rasterizer rasterizer = this.rasterizer;
+			if (Rasterizer.RGB565) {
+				rasterizer.setTarget(tileColor565, depth, TILE_SIZE, x0, y0);
+			} else {
+				rasterizer.setTarget(tileColor, depth, TILE_SIZE, x0, y0);
+			}
+			TriangleQueue queue = TileRenderer.this.queue;
+			int[] v = queue.vertices;
+			int[] materialIndex = queue.materialIndex;
+			Material[] materials = queue.materials;
+			Material current = null;
+			for (int i = 0; i < binSize; i++) {
+				int t = bin[i];
+				Material m = materials[materialIndex[t]];
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+					rasterizer.setClip(Math.max(m.clipLeft, x0), Math.max(m.clipTop, y0),
+							Math.min(m.clipRight, x1), Math.min(m.clipBottom, y1));
+				}
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				rasterizer.fillTriangleBlocks(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+			}
+
+			for (int y = 0; y < h; y++) {
+				System.arraycopy(color, y * TILE_SIZE, colorBuffer, (y0 + y) * stride + x0, w);
+			}
+		}
+	}
+}
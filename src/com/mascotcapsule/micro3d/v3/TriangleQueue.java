@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Projected triangles in submission order, kept until the end of a flush.
+ */
+final class TriangleQueue {
+	static final int TRIANGLE_SIZE = Rasterizer.VERTEX_SIZE * 3;
+	// depth of the third vertex of a rectangle, out of the range of triangles
+	static final int RECT = -1;
+
+	int[] vertices = new int[TRIANGLE_SIZE * 64];
+	int[] materialIndex = new int[64];
+	Material[] materials = new Material[16];
+	int size;
+	int materialCount;
+	private boolean materialUsed;
+	private int[] batchStart = new int[16];
+	private int[] batchKey = new int[16];
+	private int batchCount;
+	private int[] spareVertices = new int[0];
+	private int[] spareIndex = new int[0];
+
+	/**
+	 * Makes a copy of {@code m} the material of the triangles added next.
+	 */
+	void setMaterial(Material m) {
+		if (materialCount == 0 || materialUsed) {
+			if (materialCount == materials.length) {
+				Material[] tmp = new Material[materialCount * 2];
+				System.arraycopy(materials, 0, tmp, 0, materialCount);
+				materials = tmp;
+			}
+			if (materials[materialCount] == null) {
+				materials[materialCount] = new Material();
+			}
+			materialCount++;
+			materialUsed = false;
+		}
+		materials[materialCount - 1].set(m);
+	}
+
+	void add(int[] v, int a, int b, int c) {
+		int o = reserve();
+		System.arraycopy(v, a, vertices, o, Rasterizer.VERTEX_SIZE);
+		System.arraycopy(v, b, vertices, o + Rasterizer.VERTEX_SIZE, Rasterizer.VERTEX_SIZE);
+		System.arraycopy(v, c, vertices, o + Rasterizer.VERTEX_SIZE * 2, Rasterizer.VERTEX_SIZE);
+	}
+
+	/**
+	 * Adds a rectangle for {@link Rasterizer#fillRect} in place of a triangle. The first
+	 * two vertices hold its corners, the depth of the third one is {@link #RECT}.
+	 * Only the scanline mode draws the queue itself and knows about them.
+	 */
+	void addRect(int left, int top, int right, int bottom, int z, int u0, int v0, int u1, int v1) {
+		int o = reserve();
+		int[] vertices = this.vertices;
+		vertices[o + Rasterizer.X] = left;
+		vertices[o + Rasterizer.Y] = top;
+		vertices[o + Rasterizer.Z] = z;
+		vertices[o + Rasterizer.U] = u0;
+		vertices[o + Rasterizer.V] = v0;
+		o += Rasterizer.VERTEX_SIZE;
+		vertices[o + Rasterizer.X] = right;
+		vertices[o + Rasterizer.Y] = bottom;
+		vertices[o + Rasterizer.Z] = z;
+		vertices[o + Rasterizer.U] = u1;
+		vertices[o + Rasterizer.V] = v1;
+		vertices[o + Rasterizer.VERTEX_SIZE + Rasterizer.Z] = RECT;
+	}
+
+	/**
+	 * Appends an entry with the current material.
+	 *
+	 * @return offset of its vertices
+	 */
+	private int reserve() {
+		if (size == materialIndex.length) {
+			int[] tmp = new int[size * 2];
+			System.arraycopy(materialIndex, 0, tmp, 0, size);
+			materialIndex = tmp;
+			tmp = new int[size * 2 * TRIANGLE_SIZE];
+			System.arraycopy(vertices, 0, tmp, 0, size * TRIANGLE_SIZE);
+			vertices = tmp;
+		}
+		materialIndex[size] = materialCount - 1;
+		materialUsed = true;
+		return size++ * TRIANGLE_SIZE;
+	}
+
+	/**
+	 * Appends the triangles of another queue with their materials.
+	 */
+	void append(TriangleQueue q) {
+		int size = q.size;
+		if (size == 0) return;
+		int base = materialCount;
+		for (int i = 0; i < q.materialCount; i++) {
+			materialUsed = true;
+			setMaterial(q.materials[i]);
+		}
+		int total = this.size + size;
+		if (total > materialIndex.length) {
+			int n = Math.max(total, materialIndex.length * 2);
+			int[] tmp = new int[n];
+			System.arraycopy(materialIndex, 0, tmp, 0, this.size);
+			materialIndex = tmp;
+			tmp = new int[n * TRIANGLE_SIZE];
+			System.arraycopy(vertices, 0, tmp, 0, this.size * TRIANGLE_SIZE);
+			vertices = tmp;
+		}
+		System.arraycopy(q.vertices, 0, vertices, this.size * TRIANGLE_SIZE, size * TRIANGLE_SIZE);
+		int[] src = q.materialIndex;
+		for (int i = 0; i < size; i++) {
+			materialIndex[this.size + i] = base + src[i];
+		}
+		this.size = total;
+		materialUsed = true;
+	}
+
+	/**
+	 * Starts a group of triangles kept together by {@link #reverseBatches}.
+	 * Consecutive groups with the same key are merged, so they keep their order.
+	 */
+	void beginBatch(int key) {
+		if (batchCount != 0 && batchStart[batchCount - 1] == size) {
+			batchCount--;
+		}
+		if (batchCount != 0 && batchKey[batchCount - 1] == key) return;
+		if (batchCount == batchStart.length) {
+			int[] tmp = new int[batchCount * 2];
+			System.arraycopy(batchStart, 0, tmp, 0, batchCount);
+			batchStart = tmp;
+			tmp = new int[batchCount * 2];
+			System.arraycopy(batchKey, 0, tmp, 0, batchCount);
+			batchKey = tmp;
+		}
+		batchKey[batchCount] = key;
+		batchStart[batchCount++] = size;
+	}
+
+	/**
+	 * Reverses the order of the batches, keeping the order of triangles inside each one.
+	 */
+	void reverseBatches() {
+		if (batchCount == 0 || batchCount == 1 && batchStart[0] == 0) {
+			batchCount = 0;
+			return;
+		}
+		if (spareIndex.length < materialIndex.length) {
+			spareIndex = new int[materialIndex.length];
+			spareVertices = new int[vertices.length];
+		}
+		int n = 0;
+		int end = size;
+		for (int b = batchCount - 1; b >= -1; b--) {
+			int start = b < 0 ? 0 : batchStart[b];
+			int count = end - start;
+			System.arraycopy(materialIndex, start, spareIndex, n, count);
+			System.arraycopy(vertices, start * TRIANGLE_SIZE, spareVertices, n * TRIANGLE_SIZE, count * TRIANGLE_SIZE);
+			n += count;
+			end = start;
+		}
+		int[] tmp = materialIndex;
+		materialIndex = spareIndex;
+		spareIndex = tmp;
+		tmp = vertices;
+		vertices = spareVertices;
+		spareVertices = tmp;
+		batchCount = 0;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+		materialCount = 0;
+		materialUsed = false;
+		batchCount = 0;
+	}
+}
@@ -23,7 +23,7 @@ class Utils {
 	static final int[] IDENTITY_AFFINE = {
 			// 0     1     2     3
 			// 0     4     8    12
-			4096,    0, 4096,    0,
+			4096,    0,    0,    0,
 			// 4     5     6     7
 			// 1     5     9    13
 			   0, 4096,    0,    0,
@@ -32,254 +32,259 @@ class Utils {
 			   0,    0, 4096,    0
 	};
 
-	static void parallelScale(float[] pm, int x, int y, FigureLayout layout, float vw, float vh) {
-		float w = vw * (4096.0f / layout.scaleX);
-		float h = vh * (4096.0f / layout.scaleY);
+	static final int PROJ_CX = 0;
+	static final int PROJ_CY = 1;
+	static final int PROJ_SX = 2;
+	static final int PROJ_SY = 3;
+	static final int PROJ_NEAR = 4;
+	static final int PROJ_FAR = 5;
+	static final int PROJ_SIZE = 6;
 
-		float sx = 2.0f / w;
-		float sy = 2.0f / h;
-		float sz = 1.0f / 65536.0f;
-		float tx = 2.0f * (layout.centerX + x) / vw - 1.0f;
-		float ty = 2.0f * (layout.centerY + y) / vh - 1.0f;
-		float tz = 0.0f;
-
-		pm[ 0] =   sx; pm[ 4] = 0.0f; pm[ 8] = 0.0f; pm[12] =   tx;
-		pm[ 1] = 0.0f; pm[ 5] =   sy; pm[ 9] = 0.0f; pm[13] =   ty;
-		pm[ 2] = 0.0f; pm[ 6] = 0.0f; pm[10] =   sz; pm[14] =   tz;
-		pm[ 3] = 0.0f; pm[ 7] = 0.0f; pm[11] = 0.0f; pm[15] = 1.0f;
+	/*
+	 * Projection parameters are kept in the int[] form the software renderer uses directly:
+	 * screen center in 16.16 pixels, scale in 16.16 (pixels per unit for parallel layouts,
+	 * focal length in pixels for perspective ones), near and far planes.
+	 */
+	static void parallelScale(int[] pm, int x, int y, FigureLayout layout, int vw, int vh) {
+		pm[PROJ_CX] = (layout.centerX + x) << 16;
+		pm[PROJ_CY] = (layout.centerY + y) << 16;
+		pm[PROJ_SX] = layout.scaleX << 4;
+		pm[PROJ_SY] = layout.scaleY << 4;
+		pm[PROJ_NEAR] = 0;
+		pm[PROJ_FAR] = 0;
 	}
 
-	static void parallelWH(float[] pm, int x, int y, FigureLayout layout, float vw, float vh) {
-		float w = layout.parallelWidth == 0 ? 400.0f * 4.0f : layout.parallelWidth;
-		float h = layout.parallelHeight == 0 ? w * (vh / vw) : layout.parallelHeight;
+	static void parallelWH(int[] pm, int x, int y, FigureLayout layout, int vw, int vh) {
+		int w = layout.parallelWidth == 0 ? 400 * 4 : layout.parallelWidth;
 
-		float sx = 2.0f / w;
-		float sy = 2.0f / h;
-		float sz = 1.0f / 65536.0f;
-		float tx = 2.0f * (layout.centerX + x) / vw - 1.0f;
-		float ty = 2.0f * (layout.centerY + y) / vh - 1.0f;
-		float tz = 0.0f;
-
-		pm[0] =   sx; pm[4] = 0.0f; pm[ 8] = 0.0f; pm[12] =   tx;
-		pm[1] = 0.0f; pm[5] =   sy; pm[ 9] = 0.0f; pm[13] =   ty;
-		pm[2] = 0.0f; pm[6] = 0.0f; pm[10] =   sz; pm[14] =   tz;
-		pm[3] = 0.0f; pm[7] = 0.0f; pm[11] = 0.0f; pm[15] = 1.0f;
+		pm[PROJ_CX] = (layout.centerX + x) << 16;
+		pm[PROJ_CY] = (layout.centerY + y) << 16;
+		pm[PROJ_SX] = (int) (((long) vw << 16) / w);
+		pm[PROJ_SY] = layout.parallelHeight == 0 ? pm[PROJ_SX] : (int) (((long) vh << 16) / layout.parallelHeight);
+		pm[PROJ_NEAR] = 0;
+		pm[PROJ_FAR] = 0;
 	}
 
-	static void perspectiveFov(float[] pm, int x, int y, FigureLayout layout, float vw, float vh) {
-		float near = layout.near;
-		float far = layout.far;
-		float rd = 1.0f / (near - far);
-		float sx = 1.0f / (float) Math.tan(layout.angle * TO_FLOAT * Math.PI);
-		float sy = sx * (vw / vh);
-		float sz = -(far + near) * rd;
-		float tx = 2.0f * (layout.centerX + x) / vw - 1.0f;
-		float ty = 2.0f * (layout.centerY + y) / vh - 1.0f;
-		float tz = 2.0f * far * near * rd;
+	static void perspectiveFov(int[] pm, int x, int y, FigureLayout layout, int vw, int vh) {
+		double f = vw * 0.5 / Math.tan(layout.angle * TO_FLOAT * Math.PI);
 
-		pm[0] =   sx; pm[4] = 0.0f; pm[ 8] =   tx; pm[12] = 0.0f;
-		pm[1] = 0.0f; pm[5] =   sy; pm[ 9] =   ty; pm[13] = 0.0f;
-		pm[2] = 0.0f; pm[6] = 0.0f; pm[10] =   sz; pm[14] =   tz;
-		pm[3] = 0.0f; pm[7] = 0.0f; pm[11] = 1.0f; pm[15] = 0.0f;
+		pm[PROJ_CX] = (layout.centerX + x) << 16;
+		pm[PROJ_CY] = (layout.centerY + y) << 16;
+		pm[PROJ_SX] = (int) (f * 65536.0);
+		pm[PROJ_SY] = pm[PROJ_SX];
+		pm[PROJ_NEAR] = layout.near;
+		pm[PROJ_FAR] = layout.far;
 	}
 
-	static void perspectiveWH(float[] pm, int x, int y, FigureLayout layout, float vw, float vh) {
-		float zFar = layout.far;
-		float zNear = layout.near;
-		float width = layout.perspectiveWidth == 0 ? vw : layout.perspectiveWidth * TO_FLOAT;
-		float height = layout.perspectiveHeight == 0 ? vh : layout.perspectiveHeight * TO_FLOAT;
-
-		float rd = 1.0f / (zNear - zFar);
-		float sx = 2.0f * zNear / width;
-		float sy = 2.0f * zNear / height;
-		float sz = -(zNear + zFar) * rd;
-		float tx = 2.0f * (layout.centerX + x) / vw - 1.0f;
-		float ty = 2.0f * (layout.centerY + y) / vh - 1.0f;
-		float tz = 2.0f * zFar * zNear * rd;
+	static void perspectiveWH(int[] pm, int x, int y, FigureLayout layout, int vw, int vh) {
+		int near = layout.near;
 
-		pm[0] =   sx; pm[4] = 0.0f; pm[ 8] =   tx; pm[12] = 0.0f;
-		pm[1] = 0.0f; pm[5] =   sy; pm[ 9] =   ty; pm[13] = 0.0f;
-		pm[2] = 0.0f; pm[6] = 0.0f; pm[10] =   sz; pm[14] =   tz;
-		pm[3] = 0.0f; pm[7] = 0.0f; pm[11] = 1.0f; pm[15] = 0.0f;
+		pm[PROJ_CX] = (layout.centerX + x) << 16;
+		pm[PROJ_CY] = (layout.centerY + y) << 16;
+		pm[PROJ_SX] = layout.perspectiveWidth == 0 ? near << 16
+				: (int) (((long) near * vw << 28) / layout.perspectiveWidth);
+		pm[PROJ_SY] = layout.perspectiveHeight == 0 ? near << 16
+				: (int) (((long) near * vh << 28) / layout.perspectiveHeight);
+		pm[PROJ_NEAR] = near;
+		pm[PROJ_FAR] = layout.far;
 	}
 
-	static void getSpriteVertex(float[] quad, float[] center, int angle, float halfW, float halfH) {
-		float r = angle * TO_RADIANS;
-		float sin = (float) Math.sin(r);
-		float cos = (float) Math.cos(r);
-		float x = center[0];
-		float y = center[1];
-		float z = center[2];
-		float w = center[3];
-		quad[0] = -halfW * cos + halfH * -sin + x;
-		quad[1] = -halfW * sin + halfH * cos + y;
-		quad[2] = z;
-		quad[3] = w;
-		float bx = -halfW * cos + -halfH * -sin + x;
-		float by = -halfW * sin + -halfH * cos + y;
-		quad[4] = bx;
-		quad[5] = by;
-		quad[6] = z;
-		quad[7] = w;
-		float cx = halfW * cos + halfH * -sin + x;
-		float cy = halfW * sin + halfH * cos + y;
-		quad[8] = cx;
-		quad[9] = cy;
-		quad[10] = z;
-		quad[11] = w;
-		quad[12] = cx;
-		quad[13] = cy;
-		quad[14] = z;
-		quad[15] = w;
-		quad[16] = bx;
-		quad[17] = by;
-		quad[18] = z;
-		quad[19] = w;
-		quad[20] = halfW * cos + -halfH * -sin + x;
-		quad[21] = halfW * sin + -halfH * cos + y;
-		quad[22] = z;
-		quad[23] = w;
+	/**
+	 * Computes the screen corners of a point sprite (16.16 pixels) in the order A, B, C, D,
+	 * drawn as triangles {A, B, C} and {C, B, D}.
+	 */
+	static void getSpriteVertex(int[] quad, int x, int y, int angle, int halfW, int halfH) {
+		int sin = Util3D.sin(angle);
+		int cos = Util3D.cos(angle);
+		int wc = (int) ((long) halfW * cos >> 12);
+		int ws = (int) ((long) halfW * sin >> 12);
+		int hc = (int) ((long) halfH * cos >> 12);
+		int hs = (int) ((long) halfH * sin >> 12);
+		quad[0] = -wc - hs + x;
+		quad[1] = -ws + hc + y;
+		quad[2] = -wc + hs + x;
+		quad[3] = -ws - hc + y;
+		quad[4] = wc - hs + x;
+		quad[5] = ws + hc + y;
+		quad[6] = wc + hs + x;
+		quad[7] = ws - hc + y;
 	}
 
-	static native void fillBuffer(short[] buffer, short[] vertices, int[] indices);
-	static native void fillBuffer(byte[] buffer, byte[] vertices, int[] indices);
-
-	static native void transform(short[] srcVertices, short[] dstVertices,
-								 byte[] srcNormals, byte[] dstNormals,
-								 int[] boneMatrices, int[] actionMatrices);
-
-	/*
-	JNIEXPORT void JNICALL Java_com_mascotcapsule_micro3d_v3_Utils_fillBuffer
-        (JNIEnv *env, jclass ,
-         jobject buffer, jobject vertices, jintArray indices) {
-    auto bufPtr = static_cast<Vec3f *>(env->GetDirectBufferAddress(buffer));
-    jsize len = env->GetArrayLength(indices);
-    auto indexPtr = env->GetIntArrayElements(indices, nullptr);
-    auto vertPtr = static_cast<Vec3f *>(env->GetDirectBufferAddress(vertices));
-    for (int i = 0; i < len; ++i) {
-        auto src = &vertPtr[indexPtr[i]];
-        auto dst = bufPtr++;
-        dst->x = src->x;
-        dst->y = src->y;
-        dst->z = src->z;
-    }
-    env->ReleaseIntArrayElements(indices, indexPtr, 0);
-}
+	static boolean getBoolean(String name) {
+		return "true".equals(System.getProperty(name));
+	}
 
-JNIEXPORT void JNICALL
-Java_com_mascotcapsule_micro3d_v3_Utils_transform(JNIEnv *env, jclass ,
-                                                  jobject src_vertices,
-                                                  jobject dst_vertices,
-                                                  jobject src_normals,
-                                                  jobject dst_normals,
-                                                  jobject aBones,
-                                                  jfloatArray action_matrices) {
-    auto srcVert = static_cast<Vec3f *>(env->GetDirectBufferAddress(src_vertices));
-    auto dstVert = static_cast<Vec3f *>(env->GetDirectBufferAddress(dst_vertices));
-    Vec3f *srcNorm;
-    Vec3f *dstNorm;
-    if (src_normals == nullptr) {
-        srcNorm = nullptr;
-        dstNorm = nullptr;
-    } else {
-        srcNorm = static_cast<Vec3f *>(env->GetDirectBufferAddress(src_normals));
-        dstNorm = static_cast<Vec3f *>(env->GetDirectBufferAddress(dst_normals));
-    }
-    auto bones = static_cast<Bone *>(env->GetDirectBufferAddress(aBones));
-    jlong bonesLen = env->GetDirectBufferCapacity(aBones) / sizeof(Bone);
-    jsize actionsLen = 0;
-    float *actionsPtr = nullptr;
-    Matrix *actions = nullptr;
-    if (action_matrices != nullptr) {
-        actionsPtr = env->GetFloatArrayElements(action_matrices, nullptr);
-        actionsLen = env->GetArrayLength(action_matrices) / 12;
-        actions = reinterpret_cast<Matrix *>(actionsPtr);
-    }
-    auto tmp = new Matrix[bonesLen];
-    for (int i = 0; i < bonesLen; ++i) {
-        Bone *bone = &bones[i];
-        int parent = bone->parent;
-        Matrix *matrix = &tmp[i];
-        if (parent == -1) {
-            memcpy(matrix, &bone->matrix, sizeof(Matrix));
-        } else {
-            multiplyMM(matrix, &tmp[parent], &bone->matrix);
-        }
-        if (i < actionsLen) {
-            multiplyMM(matrix, matrix, actions++);
-        }
-        auto boneLen = bone->length;
-        for (int j = 0; j < boneLen; ++j) {
-            multiplyMV(dstVert++, srcVert++, matrix);
+	static int getInt(String name, int def) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
 
-            if (srcNorm != nullptr) {
-                multiplyMN(dstNorm++, srcNorm++, matrix);
-            }
-        }
-    }
-    delete[] tmp;
-    if (action_matrices != nullptr) {
-        env->ReleaseFloatArrayElements(action_matrices, actionsPtr, 0);
-    }
-}
+	/**
+	 * Applies bone and action matrices to the source vertices, normals and bone bounds.
+	 * Bones are stored as {vertex count, parent, 3x4 matrix} records, matrices are 4096-based.
+	 */
+	static void transform(short[] srcVertices, short[] dstVertices,
+						  byte[] srcNormals, byte[] dstNormals,
+						  int[] bones, int[] actionMatrices,
+						  int[] srcBounds, int[] dstBounds) {
+		int numVertices = srcVertices.length / 3;
+		int numBones = bones.length / 14;
+		int numActions = actionMatrices == null ? 0 : actionMatrices.length / 12;
+		int numBounds = srcBounds.length / 4 - 1;
+		int[] tmp = new int[numBones * 12];
+		int v = 0;
+		for (int i = 0; i < numBones && v < numVertices; i++) {
+			int bone = i * 14;
+			int parent = bones[bone + 1];
+			int mtx = i * 12;
+			if (parent == -1) {
+				System.arraycopy(bones, bone + 2, tmp, mtx, 12);
+			} else {
+				multiplyMM(tmp, mtx, tmp, parent * 12, bones, bone + 2);
+			}
+			if (i < numActions) {
+				multiplyMM(tmp, mtx, tmp, mtx, actionMatrices, i * 12);
+			}
+			int m00 = tmp[mtx];
+			int m01 = tmp[mtx + 1];
+			int m02 = tmp[mtx + 2];
+			int m03 = tmp[mtx + 3];
+			int m10 = tmp[mtx + 4];
+			int m11 = tmp[mtx + 5];
+			int m12 = tmp[mtx + 6];
+			int m13 = tmp[mtx + 7];
+			int m20 = tmp[mtx + 8];
+			int m21 = tmp[mtx + 9];
+			int m22 = tmp[mtx + 10];
+			int m23 = tmp[mtx + 11];
+			if (i < numBounds && srcBounds[i * 4 + 3] >= 0) {
+				int b = i * 4;
+				int x = srcBounds[b];
+				int y = srcBounds[b + 1];
+				int z = srcBounds[b + 2];
+				dstBounds[b] = ((x * m00 + y * m01 + z * m02) >> 12) + m03;
+				dstBounds[b + 1] = ((x * m10 + y * m11 + z * m12) >> 12) + m13;
+				dstBounds[b + 2] = ((x * m20 + y * m21 + z * m22) >> 12) + m23;
+				dstBounds[b + 3] = (int) (srcBounds[b + 3] * getScale(m00, m01, m02,
+						m10, m11, m12, m20, m21, m22)) + 1;
+			}
+			for (int end = Math.min(v + bones[bone], numVertices); v < end; v++) {
+				int p = v * 3;
+				int x = srcVertices[p];
+				int y = srcVertices[p + 1];
+				int z = srcVertices[p + 2];
+				dstVertices[p] = (short) (((x * m00 + y * m01 + z * m02) >> 12) + m03);
+				dstVertices[p + 1] = (short) (((x * m10 + y * m11 + z * m12) >> 12) + m13);
+				dstVertices[p + 2] = (short) (((x * m20 + y * m21 + z * m22) >> 12) + m23);
 
-static void multiplyMM(Matrix *m, Matrix *lm, Matrix *rm) {
-    float l00 = lm->m00;
-    float l01 = lm->m01;
-    float l02 = lm->m02;
-    float l10 = lm->m10;
-    float l11 = lm->m11;
-    float l12 = lm->m12;
-    float l20 = lm->m20;
-    float l21 = lm->m21;
-    float l22 = lm->m22;
-    float r00 = rm->m00;
-    float r01 = rm->m01;
-    float r02 = rm->m02;
-    float r03 = rm->m03;
-    float r10 = rm->m10;
-    float r11 = rm->m11;
-    float r12 = rm->m12;
-    float r13 = rm->m13;
-    float r20 = rm->m20;
-    float r21 = rm->m21;
-    float r22 = rm->m22;
-    float r23 = rm->m23;
+				if (srcNormals != null) {
+					x = srcNormals[p];
+					y = srcNormals[p + 1];
+					z = srcNormals[p + 2];
+					dstNormals[p] = (byte) ((x * m00 + y * m01 + z * m02) >> 12);
+					dstNormals[p + 1] = (byte) ((x * m10 + y * m11 + z * m12) >> 12);
+					dstNormals[p + 2] = (byte) ((x * m20 + y * m21 + z * m22) >> 12);
+				}
+			}
+		}
+		mergeBounds(dstBounds);
+	}
 
-    m->m00 = l00 * r00 + l01 * r10 + l02 * r20;
-    m->m01 = l00 * r01 + l01 * r11 + l02 * r21;
-    m->m02 = l00 * r02 + l01 * r12 + l02 * r22;
-    m->m03 = l00 * r03 + l01 * r13 + l02 * r23 + lm->m03;
-    m->m10 = l10 * r00 + l11 * r10 + l12 * r20;
-    m->m11 = l10 * r01 + l11 * r11 + l12 * r21;
-    m->m12 = l10 * r02 + l11 * r12 + l12 * r22;
-    m->m13 = l10 * r03 + l11 * r13 + l12 * r23 + lm->m13;
-    m->m20 = l20 * r00 + l21 * r10 + l22 * r20;
-    m->m21 = l20 * r01 + l21 * r11 + l22 * r21;
-    m->m22 = l20 * r02 + l21 * r12 + l22 * r22;
-    m->m23 = l20 * r03 + l21 * r13 + l22 * r23 + lm->m23;
-}
+	/**
+	 * @return the largest scale a 4096-based matrix applies along its axes
+	 */
+	static double getScale(int m00, int m01, int m02, int m10, int m11, int m12,
+						   int m20, int m21, int m22) {
+		long x = (long) m00 * m00 + (long) m10 * m10 + (long) m20 * m20;
+		long y = (long) m01 * m01 + (long) m11 * m11 + (long) m21 * m21;
+		long z = (long) m02 * m02 + (long) m12 * m12 + (long) m22 * m22;
+		return Math.sqrt(Math.max(x, Math.max(y, z))) / 4096.0;
+	}
 
-static void multiplyMV(Vec3f *dst, Vec3f *src, Matrix *matrix) {
-    float x = src->x;
-    float y = src->y;
-    float z = src->z;
-    dst->x = x * matrix->m00 + y * matrix->m01 + z * matrix->m02 + matrix->m03;
-    dst->y = x * matrix->m10 + y * matrix->m11 + z * matrix->m12 + matrix->m13;
-    dst->z = x * matrix->m20 + y * matrix->m21 + z * matrix->m22 + matrix->m23;
-}
+	/**
+	 * Sets the last sphere of the bounds to enclose the bone spheres before it.
+	 */
+	private static void mergeBounds(int[] bounds) {
+		int last = bounds.length - 4;
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+		for (int b = 0; b < last; b += 4) {
+			int r = bounds[b + 3];
+			if (r < 0) continue;
+			if (bounds[b] - r < minX) minX = bounds[b] - r;
+			if (bounds[b] + r > maxX) maxX = bounds[b] + r;
+			if (bounds[b + 1] - r < minY) minY = bounds[b + 1] - r;
+			if (bounds[b + 1] + r > maxY) maxY = bounds[b + 1] + r;
+			if (bounds[b + 2] - r < minZ) minZ = bounds[b + 2] - r;
+			if (bounds[b + 2] + r > maxZ) maxZ = bounds[b + 2] + r;
+		}
+		if (minX > maxX) {
+			bounds[last + 3] = -1;
+			return;
+		}
+		int cx = (minX + maxX) >> 1;
+		int cy = (minY + maxY) >> 1;
+		int cz = (minZ + maxZ) >> 1;
+		double radius = 0;
+		for (int b = 0; b < last; b += 4) {
+			int r = bounds[b + 3];
+			if (r < 0) continue;
+			double dx = bounds[b] - cx;
+			double dy = bounds[b + 1] - cy;
+			double dz = bounds[b + 2] - cz;
+			double d = Math.sqrt(dx * dx + dy * dy + dz * dz) + r;
+			if (d > radius) radius = d;
+		}
+		bounds[last] = cx;
+		bounds[last + 1] = cy;
+		bounds[last + 2] = cz;
+		bounds[last + 3] = (int) radius + 1;
+	}
 
-static void multiplyMN(Vec3f *dst, Vec3f *src, Matrix *matrix) {
-    float x = src->x;
-    float y = src->y;
-    float z = src->z;
-    dst->x = x * matrix->m00 + y * matrix->m01 + z * matrix->m02;
-    dst->y = x * matrix->m10 + y * matrix->m11 + z * matrix->m12;
-    dst->z = x * matrix->m20 + y * matrix->m21 + z * matrix->m22;
-}
+	private static void multiplyMM(int[] m, int mo, int[] lm, int lo, int[] rm, int ro) {
+		int l00 = lm[lo];
+		int l01 = lm[lo + 1];
+		int l02 = lm[lo + 2];
+		int l03 = lm[lo + 3];
+		int l10 = lm[lo + 4];
+		int l11 = lm[lo + 5];
+		int l12 = lm[lo + 6];
+		int l13 = lm[lo + 7];
+		int l20 = lm[lo + 8];
+		int l21 = lm[lo + 9];
+		int l22 = lm[lo + 10];
+		int l23 = lm[lo + 11];
+		int r00 = rm[ro];
+		int r01 = rm[ro + 1];
+		int r02 = rm[ro + 2];
+		int r03 = rm[ro + 3];
+		int r10 = rm[ro + 4];
+		int r11 = rm[ro + 5];
+		int r12 = rm[ro + 6];
+		int r13 = rm[ro + 7];
+		int r20 = rm[ro + 8];
+		int r21 = rm[ro + 9];
+		int r22 = rm[ro + 10];
+		int r23 = rm[ro + 11];
 
-#ifdef __cplusplus
-}
-#endif
-	 */
+		m[mo] = (l00 * r00 + l01 * r10 + l02 * r20) >> 12;
+		m[mo + 1] = (l00 * r01 + l01 * r11 + l02 * r21) >> 12;
+		m[mo + 2] = (l00 * r02 + l01 * r12 + l02 * r22) >> 12;
+		m[mo + 3] = ((l00 * r03 + l01 * r13 + l02 * r23) >> 12) + l03;
+		m[mo + 4] = (l10 * r00 + l11 * r10 + l12 * r20) >> 12;
+		m[mo + 5] = (l10 * r01 + l11 * r11 + l12 * r21) >> 12;
+		m[mo + 6] = (l10 * r02 + l11 * r12 + l12 * r22) >> 12;
+		m[mo + 7] = ((l10 * r03 + l11 * r13 + l12 * r23) >> 12) + l13;
+		m[mo + 8] = (l20 * r00 + l21 * r10 + l22 * r20) >> 12;
+		m[mo + 9] = (l20 * r01 + l21 * r11 + l22 * r21) >> 12;
+		m[mo + 10] = (l20 * r02 + l21 * r12 + l22 * r22) >> 12;
+		m[mo + 11] = ((l20 * r03 + l21 * r13 + l22 * r23) >> 12) + l23;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2020 Yury Kharchenko
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.mascotcapsule.micro3d.v3;
+
+/**
+ * Deferred shading of opaque triangles.
+ * <p>
+ * The first pass writes only depth and the index of the nearest triangle per pixel.
+ * The second pass shades every covered pixel once, run by run, grouped by triangle.
+ * Blended triangles are then drawn over with the depth test of the first pass.
+ */
+final class VisibilityBuffer {
+	private int[] idBuffer = new int[0];
+
+	// runs of pixels showing the same triangle
+	private int[] runX = new int[256];
+	private int[] runY = new int[256];
+	private int[] runLength = new int[256];
+	private int[] runLink = new int[256];
+	private int runCount;
+	private int[] triHead = new int[64];
+
+	/**
+	 * @param rasterizer  rasterizer with its target already set to the color buffer
+	 * @param depthBuffer depth buffer of the target, cleared to Rasterizer.DEPTH_FAR
+	 */
+	void render(TriangleQueue queue, Rasterizer rasterizer, short[] depthBuffer,
+				int stride, int left, int top, int right, int bottom) {
+		int size = queue.size;
+		if (size == 0 || left >= right || top >= bottom) return;
+		if (idBuffer.length < depthBuffer.length) {
+			idBuffer = new int[depthBuffer.length];
+		}
+		int[] idBuffer = this.idBuffer;
+		for (int y = top; y < bottom; y++) {
+			for (int i = y * stride + left, end = y * stride + right; i < end; i++) {
+				idBuffer[i] = -1;
+			}
+		}
+
+		int[] v = queue.vertices;
+		int[] materialIndex = queue.materialIndex;
+		Material[] materials = queue.materials;
+		Material current = null;
+		rasterizer.setDepthBuffer(depthBuffer);
+		rasterizer.idBuffer = idBuffer;
+		try {
+			for (int t = 0; t < size; t++) {
+				Material m = materials[materialIndex[t]];
+				if (!m.depthWrite) continue;
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+					rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+				}
+				rasterizer.triangleId = t;
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				rasterizer.fillTriangle(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+			}
+		} finally {
+			rasterizer.idBuffer = null;
+		}
+
+		collectRuns(size, stride, left, top, right, bottom);
+		// depth is already resolved, shade without testing it again
+		rasterizer.setDepthBuffer(null);
+		try {
+			current = null;
+			for (int t = 0; t < size; t++) {
+				int r = triHead[t];
+				if (r < 0) continue;
+				Material m = materials[materialIndex[t]];
+				if (m != current) {
+					current = m;
+					rasterizer.setMaterial(m);
+				}
+				int o = t * TriangleQueue.TRIANGLE_SIZE;
+				if (!rasterizer.prepare(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2)) {
+					continue;
+				}
+				for (; r >= 0; r = runLink[r]) {
+					rasterizer.fillRow(runX[r], runY[r], runLength[r]);
+				}
+			}
+		} finally {
+			rasterizer.setDepthBuffer(depthBuffer);
+		}
+
+		current = null;
+		for (int t = 0; t < size; t++) {
+			Material m = materials[materialIndex[t]];
+			if (m.depthWrite) continue;
+			if (m != current) {
+				current = m;
+				rasterizer.setMaterial(m);
+				rasterizer.setClip(m.clipLeft, m.clipTop, m.clipRight, m.clipBottom);
+			}
+			int o = t * TriangleQueue.TRIANGLE_SIZE;
+			rasterizer.fillTriangle(v, o, o + Rasterizer.VERTEX_SIZE, o + Rasterizer.VERTEX_SIZE * 2);
+		}
+	}
+
+	private void collectRuns(int size, int stride, int left, int top, int right, int bottom) {
+		if (triHead.length < size) {
+			triHead = new int[size * 2];
+		}
+		int[] triHead = this.triHead;
+		for (int t = 0; t < size; t++) {
+			triHead[t] = -1;
+		}
+		int[] idBuffer = this.idBuffer;
+		runCount = 0;
+		for (int y = top; y < bottom; y++) {
+			int row = y * stride;
+			int x = left;
+			while (x < right) {
+				int id = idBuffer[row + x];
+				int start = x;
+				do {
+					x++;
+				} while (x < right && idBuffer[row + x] == id);
+				if (id < 0) continue;
+				if (runCount == runX.length) {
+					int n = runCount * 2;
+					runX = grow(runX, n);
+					runY = grow(runY, n);
+					runLength = grow(runLength, n);
+					runLink = grow(runLink, n);
+				}
+				int r = runCount++;
+				runX[r] = start;
+				runY[r] = y;
+				runLength[r] = x - start;
+				runLink[r] = triHead[id];
+				triHead[id] = r;
+			}
+		}
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] tmp = new int[size];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+}